@@ -22,23 +22,48 @@
 
 package uk.co.jasonfry.android.tools.ui;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
 import uk.co.jasonfry.android.tools.ui.PageControl.OnPageControlClickListener;
+import android.animation.ValueAnimator;
 import android.content.Context;
+import android.database.DataSetObserver;
 import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Display;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.view.animation.Interpolator;
+import android.widget.Adapter;
 import android.widget.HorizontalScrollView;
 import android.widget.LinearLayout;
+import android.widget.OverScroller;
 
 
 public class SwipeView extends HorizontalScrollView
 {
 	private static int DEFAULT_SWIPE_THRESHOLD = 60;
+	private static final int MIN_FLING_VELOCITY_DIP = 400; //dips per second
+	private static final float FLING_PROJECTION_TIME = 0.25f; //seconds of the fling's velocity used to decide how many pages it covers
+	private static final int MAX_SETTLE_DURATION = 600;
+	private static final int SETTLE_DURATION_PER_PAGE = 100;
+	private static final Method sPostOnAnimation = findPostOnAnimation(); //jelly bean and later, looked up so the library still builds against honeycomb
+	
+	/**
+	 * The offscreen page limit that keeps every page attached, which is the default
+	 */
+	public static final int NO_OFFSCREEN_PAGE_LIMIT = -1;
+	
+	/**
+	 * The offscreen page limit used with a page adapter if none has been set
+	 */
+	public static final int DEFAULT_ADAPTER_OFFSCREEN_PAGE_LIMIT = 1;
 	
 	private LinearLayout mLinearLayout;
 	private Context mContext;
@@ -55,6 +80,58 @@ public class SwipeView extends HorizontalScrollView
 	private SwipeOnTouchListener mSwipeOnTouchListener;
 	private View.OnTouchListener mOnTouchListener;
 	private PageControl mPageControl = null;
+	private ArrayList<View> mPages = new ArrayList<View>();
+	private ArrayList<View> mSpareSpacers = new ArrayList<View>();
+	private int mOffscreenPageLimit = NO_OFFSCREEN_PAGE_LIMIT;
+	private int mFirstAttachedPage = -1;
+	private int mLastAttachedPage = -1;
+	private OverScroller mPageScroller;
+	private Interpolator mPageSettleInterpolator = null;
+	private int mPageSettleDuration = 0;
+	private VelocityTracker mVelocityTracker;
+	private int mTouchSlop;
+	private int mMinimumFlingVelocity;
+	private int mMaximumFlingVelocity;
+	private Object[] mPageSettleFrameArgs;
+	private Runnable mPageSettleFrame = new Runnable()
+	{
+		public void run()
+		{
+			if(mPageScroller.computeScrollOffset())
+			{
+				scrollTo(mPageScroller.getCurrX(), 0);
+				if(!mPageScroller.isFinished())
+				{
+					postPageSettleFrame();
+				}
+			}
+		}
+	};
+	private Runnable mUpdateAttachedPages = new Runnable()
+	{
+		public void run()
+		{
+			updateAttachedPages();
+		}
+	};
+	private Adapter mPageAdapter;
+	private ArrayList<ArrayList<View>> mScrapViews = new ArrayList<ArrayList<View>>();
+	private int mViewTypeCount = 0;
+	private boolean mAdapterSetOffscreenPageLimit = false;
+	private DataSetObserver mPageAdapterObserver = new DataSetObserver()
+	{
+		@Override
+		public void onChanged()
+		{
+			loadPagesFromAdapter();
+		}
+		
+		@Override
+		public void onInvalidated()
+		{
+			loadPagesFromAdapter();
+		}
+	};
 
 	/**
 	 * {@inheritDoc}
@@ -102,6 +179,13 @@ public class SwipeView extends HorizontalScrollView
 		mPageWidth = SCREEN_WIDTH;
 		mCurrentPage = 0;
 		
+		ViewConfiguration configuration = ViewConfiguration.get(mContext);
+		mTouchSlop = configuration.getScaledTouchSlop();
+		mMinimumFlingVelocity = Math.max(configuration.getScaledMinimumFlingVelocity(), (int) (MIN_FLING_VELOCITY_DIP * getResources().getDisplayMetrics().density));
+		mMaximumFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+		mVelocityTracker = VelocityTracker.obtain();
+		mPageScroller = new OverScroller(mContext);
+		
 		mSwipeOnTouchListener = new SwipeOnTouchListener();
 		super.setOnTouchListener(mSwipeOnTouchListener);
 	}
@@ -175,7 +259,28 @@ public class SwipeView extends HorizontalScrollView
 	{
 		requestLayout();
 		invalidate();
-		mLinearLayout.addView(child, index, params);
+		if(mOffscreenPageLimit<0)
+		{
+			mLinearLayout.addView(child, index, params);
+			return;
+		}
+		
+		if(index<0 || index>mPages.size())
+		{
+			index = mPages.size();
+		}
+		child.setLayoutParams(params);
+		mPages.add(index, child);
+		if(isPageInWindow(index))
+		{
+			mLinearLayout.addView(child, index, params);
+		}
+		else
+		{
+			mLinearLayout.addView(obtainSpacer(params), index);
+		}
+		mFirstAttachedPage = -1; //every page after index has moved along one, so the window needs filling again
+		updateAttachedPages();
 	}
 	
 	/**
@@ -185,13 +290,50 @@ public class SwipeView extends HorizontalScrollView
 	protected void onLayout(boolean changed, int l, int t, int r, int b)
 	{
 		super.onLayout(changed, l, t, r, b);
-		if(mCallScrollToPageInOnLayout)
+		if(mCallScrollToPageInOnLayout && mPageScroller.isFinished()) //a layout part way through a settle mustn't cut it short
 		{
 			scrollToPage(mCurrentPage);
 			mCallScrollToPageInOnLayout = false;
 		}
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		if(!mPageScroller.isFinished()) //no more frames are coming, so land on the page now
+		{
+			int finalX = mPageScroller.getFinalX();
+			stopPageSettle();
+			scrollTo(finalX, 0);
+		}
+		super.onDetachedFromWindow();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onScrollChanged(int l, int t, int oldl, int oldt)
+	{
+		super.onScrollChanged(l, t, oldl, oldt);
+		updateAttachedPages();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh)
+	{
+		super.onSizeChanged(w, h, oldw, oldh);
+		mFirstAttachedPage = -1;
+		removeCallbacks(mUpdateAttachedPages); //one update is enough however many size changes come before it
+		post(mUpdateAttachedPages); //not in the middle of a layout pass
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -213,6 +355,142 @@ public class SwipeView extends HorizontalScrollView
 		return mLinearLayout;
 	}
 	
+	/**
+	 * Get the page at a position, whether or not it is attached at the moment
+	 * 
+	 * @param page The position of the page
+	 * @return The page's View
+	 */
+	public View getPageView(int page)
+	{
+		return mOffscreenPageLimit<0 ? mLinearLayout.getChildAt(page) : mPages.get(page);
+	}
+	
+	/**
+	 * Only keep the pages on screen and this many pages either side of them attached to the SwipeView. 
+	 * The rest are swapped for empty views of the same width, so scrolling and paging work as before but 
+	 * a SwipeView with many pages only measures, lays out and draws a few of them. Pages are attached and 
+	 * detached as the scroll position crosses page boundaries. While a page is detached getChildContainer 
+	 * holds its stand-in, so use getPageView to get at the page itself, and only add pages through addView.
+	 * 
+	 * @param limit The number of pages to keep either side, or NO_OFFSCREEN_PAGE_LIMIT to keep every page attached
+	 */
+	public void setOffscreenPageLimit(int limit)
+	{
+		mAdapterSetOffscreenPageLimit = mPageAdapter!=null && limit<0;
+		if(mAdapterSetOffscreenPageLimit) //an adapter's pages are only made when they come into the window
+		{
+			limit = DEFAULT_ADAPTER_OFFSCREEN_PAGE_LIMIT;
+		}
+		if(mOffscreenPageLimit<0 && limit>=0) //start keeping track of the pages, as the container is about to stop holding them all
+		{
+			mPages.clear();
+			for(int i=0; i<mLinearLayout.getChildCount(); i++)
+			{
+				mPages.add(mLinearLayout.getChildAt(i));
+			}
+		}
+		mOffscreenPageLimit = limit<0 ? NO_OFFSCREEN_PAGE_LIMIT : limit;
+		mFirstAttachedPage = -1;
+		updateAttachedPages();
+		if(mOffscreenPageLimit<0) //every page is back in the container
+		{
+			mPages.clear();
+			mSpareSpacers.clear();
+		}
+	}
+	
+	/**
+	 * Fill the SwipeView from an adapter rather than with addView. Pages are only asked for as they come into 
+	 * the window set by setOffscreenPageLimit (DEFAULT_ADAPTER_OFFSCREEN_PAGE_LIMIT unless it has been set). 
+	 * Pages that leave the window are put on a scrap heap for their view type, and handed back to the 
+	 * adapter's getView as the convertView for the next page of that type, so a long SwipeView only ever 
+	 * holds a few page views. The SwipeView follows notifyDataSetChanged. Don't call addView as well.
+	 * 
+	 * @param adapter The adapter, or null to remove every page
+	 */
+	public void setPageAdapter(Adapter adapter)
+	{
+		if(mPageAdapter!=null)
+		{
+			mPageAdapter.unregisterDataSetObserver(mPageAdapterObserver);
+		}
+		mPages.clear(); //the old adapter's pages don't go on the new adapter's scrap heaps
+		mPageAdapter = adapter;
+		mScrapViews.clear();
+		mViewTypeCount = adapter!=null ? adapter.getViewTypeCount() : 0;
+		if(adapter!=null)
+		{
+			adapter.registerDataSetObserver(mPageAdapterObserver);
+			if(mOffscreenPageLimit<0)
+			{
+				mOffscreenPageLimit = DEFAULT_ADAPTER_OFFSCREEN_PAGE_LIMIT;
+				mAdapterSetOffscreenPageLimit = true;
+			}
+		}
+		else if(mAdapterSetOffscreenPageLimit) //only undo the limit if it was the adapter that set it
+		{
+			mOffscreenPageLimit = NO_OFFSCREEN_PAGE_LIMIT;
+			mAdapterSetOffscreenPageLimit = false;
+			mSpareSpacers.clear();
+		}
+		loadPagesFromAdapter();
+		scrollToPage(0);
+	}
+	
+	/**
+	 * Get the adapter set with setPageAdapter
+	 * 
+	 * @return The page adapter, or null if there isn't one
+	 */
+	public Adapter getPageAdapter()
+	{
+		return mPageAdapter;
+	}
+	
+	/**
+	 * Get the number of pages kept attached either side of the pages on screen
+	 * 
+	 * @return The offscreen page limit, or NO_OFFSCREEN_PAGE_LIMIT if every page is kept attached
+	 */
+	public int getOffscreenPageLimit()
+	{
+		return mOffscreenPageLimit;
+	}
+	
+	/**
+	 * Set the interpolator used when settling on a page, after a swipe or a smooth scroll to a page. 
+	 * A settle that is running is stopped where it is.
+	 * 
+	 * @param interpolator The interpolator, or null for the OverScroller default
+	 */
+	public void setPageSettleInterpolator(Interpolator interpolator)
+	{
+		stopPageSettle();
+		mPageSettleInterpolator = interpolator;
+		mPageScroller = new OverScroller(mContext, interpolator);
+	}
+	
+	public Interpolator getPageSettleInterpolator()
+	{
+		return mPageSettleInterpolator;
+	}
+	
+	/**
+	 * Set how long settling on a page takes
+	 * 
+	 * @param duration The duration in milliseconds, or 0 to work it out from the distance and the speed of the swipe, which is the default
+	 */
+	public void setPageSettleDuration(int duration)
+	{
+		mPageSettleDuration = Math.max(duration, 0);
+	}
+	
+	public int getPageSettleDuration()
+	{
+		return mPageSettleDuration;
+	}
+	
 	/**
 	 * Get the swiping threshold distance to make the screens change
 	 * 
@@ -270,10 +548,26 @@ public class SwipeView extends HorizontalScrollView
 	 */
 	public void smoothScrollToPage(int page)
 	{
-		scrollToPage(page,true);
+		smoothScrollToPage(page, 0);
+	}
+	
+	/**
+	 * Animate a scroll to the specified page, carrying on at the speed of the fling that sent it there
+	 * 
+	 * @param page The page to animate to
+	 * @param velocity The velocity of the fling in pixels per second, or 0 to take the usual time
+	 */
+	public void smoothScrollToPage(int page, float velocity)
+	{
+		scrollToPage(page, true, velocity);
 	}
 	
 	private void scrollToPage(int page, boolean smooth)
+	{
+		scrollToPage(page, smooth, 0);
+	}
+	
+	private void scrollToPage(int page, boolean smooth, float velocity)
 	{
 		int oldPage = mCurrentPage;
 		if(page>=getPageCount() && getPageCount()>0)
@@ -287,10 +581,14 @@ public class SwipeView extends HorizontalScrollView
 		
 		if(smooth)
 		{
-			smoothScrollTo(page*mPageWidth,0);
+			int distance = page*mPageWidth - getScrollX();
+			removeCallbacks(mPageSettleFrame);
+			mPageScroller.startScroll(getScrollX(), 0, distance, 0, getSettleDuration(distance, velocity));
+			postPageSettleFrame();
 		}
 		else
 		{
+			stopPageSettle();
 			scrollTo(page*mPageWidth,0);
 		}
 		mCurrentPage = page;
@@ -304,7 +602,78 @@ public class SwipeView extends HorizontalScrollView
 			mPageControl.setCurrentPage(page);
 		}
 		
-		mCallScrollToPageInOnLayout=!mCallScrollToPageInOnLayout;
+		if(!smooth) //a smooth settle runs itself to the end, it doesn't need snapping after the next layout
+		{
+			mCallScrollToPageInOnLayout=!mCallScrollToPageInOnLayout;
+		}
+	}
+	
+	/**
+	 * Run the next frame of the page settle on the next display frame where View.postOnAnimation is 
+	 * available, otherwise after one animation frame delay
+	 */
+	private void postPageSettleFrame()
+	{
+		if(sPostOnAnimation!=null)
+		{
+			if(mPageSettleFrameArgs==null)
+			{
+				mPageSettleFrameArgs = new Object[]{mPageSettleFrame}; //made once, so posting a frame doesn't allocate
+			}
+			try
+			{
+				sPostOnAnimation.invoke(this, mPageSettleFrameArgs);
+				return;
+			}
+			catch(Exception e) //fall back to the frame delay
+			{
+			}
+		}
+		postDelayed(mPageSettleFrame, ValueAnimator.getFrameDelay());
+	}
+	
+	private static Method findPostOnAnimation()
+	{
+		try
+		{
+			return View.class.getMethod("postOnAnimation", Runnable.class);
+		}
+		catch(NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Stop a page settle where it is, without a layout pass
+	 */
+	private void stopPageSettle()
+	{
+		removeCallbacks(mPageSettleFrame);
+		mPageScroller.abortAnimation();
+	}
+	
+	/**
+	 * Work out how long a page settle should take, longer for further but quicker after a faster fling
+	 */
+	private int getSettleDuration(int distance, float velocity)
+	{
+		distance = Math.abs(distance);
+		velocity = Math.abs(velocity);
+		int duration;
+		if(mPageSettleDuration>0)
+		{
+			return mPageSettleDuration;
+		}
+		else if(velocity>0)
+		{
+			duration = 4 * Math.round(1000 * distance / velocity); //about the fling's own speed at the start, easing out after
+		}
+		else
+		{
+			duration = (int) ((1 + (float) distance / mPageWidth) * SETTLE_DURATION_PER_PAGE);
+		}
+		return Math.min(duration, MAX_SETTLE_DURATION);
 	}
 	
 	/**
@@ -426,6 +795,13 @@ public class SwipeView extends HorizontalScrollView
 		{
 			mMotionStartX = (int) ev.getX();
 			mMotionStartY = (int) ev.getY();
+			mVelocityTracker.clear(); //a child may take the down, so the on touch listener never sees it
+			mVelocityTracker.addMovement(ev);
+			if(!mPageScroller.isFinished()) //for the same reason catch the page here, or the settle would fight the finger
+			{
+				stopPageSettle();
+			}
+			mCallScrollToPageInOnLayout = false;
 			if(!mJustInterceptedAndIgnored)
 			{
 				mMostlyScrollingInX = false;
@@ -450,6 +826,230 @@ public class SwipeView extends HorizontalScrollView
 		return result;
 	}
 	
+	/**
+	 * Attach the pages that have come into the window around the visible pages and detach the ones that have left it
+	 */
+	private void updateAttachedPages()
+	{
+		if(mPages.isEmpty())
+		{
+			return;
+		}
+		int firstPage = getFirstWindowPage();
+		int lastPage = getLastWindowPage();
+		if(firstPage==mFirstAttachedPage && lastPage==mLastAttachedPage)
+		{
+			return;
+		}
+		mFirstAttachedPage = firstPage;
+		mLastAttachedPage = lastPage;
+		
+		for(int i=0; i<mPages.size() && i<mLinearLayout.getChildCount(); i++)
+		{
+			View page = mPages.get(i);
+			View attached = mLinearLayout.getChildAt(i);
+			boolean inWindow = i>=firstPage && i<=lastPage;
+			if(inWindow && (page==null || attached!=page))
+			{
+				if(page==null)
+				{
+					page = obtainAdapterPage(i);
+					mPages.set(i, page);
+				}
+				mLinearLayout.removeViewAt(i);
+				mSpareSpacers.add(attached);
+				mLinearLayout.addView(page, i, page.getLayoutParams());
+			}
+			else if(!inWindow && page!=null && attached==page)
+			{
+				mLinearLayout.removeViewAt(i);
+				mLinearLayout.addView(obtainSpacer(page.getLayoutParams()), i);
+				if(mPageAdapter!=null)
+				{
+					mPages.set(i, null);
+					recycleAdapterPage(page);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Throw away the pages and make a stand-in for each of the adapter's pages, which are then attached 
+	 * as they come into the window
+	 */
+	private void loadPagesFromAdapter()
+	{
+		for(int i=0; i<mPages.size(); i++)
+		{
+			View page = mPages.get(i);
+			if(page!=null && mPageAdapter!=null)
+			{
+				recycleAdapterPage(page);
+			}
+		}
+		for(int i=0; i<mLinearLayout.getChildCount() && mPageAdapter!=null; i++)
+		{
+			if(mLinearLayout.getChildAt(i) instanceof PageSpacer)
+			{
+				mSpareSpacers.add(mLinearLayout.getChildAt(i));
+			}
+		}
+		mPages.clear();
+		mLinearLayout.removeAllViews();
+		if(mPageAdapter!=null && mPageAdapter.getViewTypeCount()!=mViewTypeCount) //the view types now mean something else
+		{
+			mScrapViews.clear();
+			mViewTypeCount = mPageAdapter.getViewTypeCount();
+		}
+		
+		int count = mPageAdapter!=null ? mPageAdapter.getCount() : 0;
+		for(int i=0; i<count; i++)
+		{
+			mPages.add(null);
+			mLinearLayout.addView(obtainSpacer(null), i);
+		}
+		mFirstAttachedPage = -1;
+		updateAttachedPages();
+		
+		if(mCurrentPage>=count && count>0)
+		{
+			scrollToPage(count-1);
+		}
+		if(mPageControl!=null)
+		{
+			mPageControl.setPageCount(count);
+		}
+		requestLayout();
+		invalidate();
+	}
+	
+	/**
+	 * Get a page from the adapter, giving it a view of the same type from the scrap heap to reuse if there is one
+	 */
+	private View obtainAdapterPage(int position)
+	{
+		int viewType = mPageAdapter.getItemViewType(position);
+		View convertView = null;
+		if(viewType>=0 && viewType<mScrapViews.size())
+		{
+			ArrayList<View> scrap = mScrapViews.get(viewType);
+			if(!scrap.isEmpty())
+			{
+				convertView = scrap.remove(scrap.size()-1);
+			}
+		}
+		
+		View page = mPageAdapter.getView(position, convertView, mLinearLayout);
+		PageLayoutParams params = new PageLayoutParams(mPageWidth, LayoutParams.FILL_PARENT);
+		if(page.getLayoutParams() instanceof MarginLayoutParams)
+		{
+			MarginLayoutParams margins = (MarginLayoutParams) page.getLayoutParams();
+			params.setMargins(margins.leftMargin, margins.topMargin, margins.rightMargin, margins.bottomMargin);
+		}
+		params.mViewType = viewType;
+		page.setLayoutParams(params);
+		return page;
+	}
+	
+	/**
+	 * Put a page that has been detached on the scrap heap for its view type
+	 */
+	private void recycleAdapterPage(View page)
+	{
+		if(!(page.getLayoutParams() instanceof PageLayoutParams))
+		{
+			return;
+		}
+		int viewType = ((PageLayoutParams) page.getLayoutParams()).mViewType;
+		if(viewType<0 || viewType>=mPageAdapter.getViewTypeCount()) //Adapter.IGNORE_ITEM_VIEW_TYPE, or from before the adapter changed
+		{
+			return;
+		}
+		while(mScrapViews.size()<=viewType)
+		{
+			mScrapViews.add(new ArrayList<View>());
+		}
+		mScrapViews.get(viewType).add(page);
+	}
+	
+	private boolean isPageInWindow(int page)
+	{
+		return page>=getFirstWindowPage() && page<=getLastWindowPage();
+	}
+	
+	private int getFirstWindowPage()
+	{
+		if(mOffscreenPageLimit<0 || mPageWidth<=0)
+		{
+			return 0;
+		}
+		return Math.max(0, getScrollX()/mPageWidth - mOffscreenPageLimit);
+	}
+	
+	private int getLastWindowPage()
+	{
+		if(mOffscreenPageLimit<0 || mPageWidth<=0)
+		{
+			return Integer.MAX_VALUE;
+		}
+		int width = getWidth()>0 ? getWidth() : SCREEN_WIDTH;
+		return (getScrollX()+width-1)/mPageWidth + mOffscreenPageLimit;
+	}
+	
+	/**
+	 * Get an empty view to stand in for a detached page, taking up the same width as the page would
+	 */
+	private View obtainSpacer(ViewGroup.LayoutParams pageParams)
+	{
+		View spacer = mSpareSpacers.isEmpty() ? new PageSpacer(mContext) : mSpareSpacers.remove(mSpareSpacers.size()-1);
+		LinearLayout.LayoutParams params;
+		if(spacer.getLayoutParams() instanceof LinearLayout.LayoutParams) //a spare spacer's params are reused, so paging through doesn't allocate
+		{
+			params = (LinearLayout.LayoutParams) spacer.getLayoutParams();
+			params.width = pageParams!=null ? pageParams.width : mPageWidth;
+			params.height = LayoutParams.FILL_PARENT;
+		}
+		else
+		{
+			params = new LinearLayout.LayoutParams(pageParams!=null ? pageParams.width : mPageWidth, LayoutParams.FILL_PARENT);
+		}
+		if(pageParams instanceof MarginLayoutParams)
+		{
+			MarginLayoutParams margins = (MarginLayoutParams) pageParams;
+			params.setMargins(margins.leftMargin, margins.topMargin, margins.rightMargin, margins.bottomMargin);
+		}
+		else
+		{
+			params.setMargins(0, 0, 0, 0);
+		}
+		spacer.setLayoutParams(params);
+		return spacer;
+	}
+	
+	/**
+	 * The empty view that stands in for a detached page
+	 */
+	private static class PageSpacer extends View
+	{
+		public PageSpacer(Context context)
+		{
+			super(context);
+		}
+	}
+	
+	/**
+	 * Layout params for an adapter's pages, which remember the view type so the page goes back on the right scrap heap
+	 */
+	private static class PageLayoutParams extends LinearLayout.LayoutParams
+	{
+		private int mViewType = Adapter.IGNORE_ITEM_VIEW_TYPE;
+		
+		public PageLayoutParams(int width, int height)
+		{
+			super(width, height);
+		}
+	}
+	
 	private void detectMostlyScrollingDirection(MotionEvent ev)
 	{
 		if(!mMostlyScrollingInX && !mMostlyScrollingInY) //if we dont know which direction we're going yet
@@ -490,6 +1090,15 @@ public class SwipeView extends HorizontalScrollView
 				}
 			}
 			
+			if(!mSendingDummyMotionEvent)
+			{
+				if(event.getAction()==MotionEvent.ACTION_DOWN) //don't let an earlier gesture that never finished feed this one's fling
+				{
+					mVelocityTracker.clear();
+				}
+				mVelocityTracker.addMovement(event);
+			}
+			
 			if(mSendingDummyMotionEvent)//if sending the fake action down event (to do with vertical scrolling within this horizontalscrollview) then just ignore it
 			{
 				mSendingDummyMotionEvent = false;
@@ -506,15 +1115,26 @@ public class SwipeView extends HorizontalScrollView
 					
 				case MotionEvent.ACTION_UP :
 					return actionUp(event);
+					
+				case MotionEvent.ACTION_CANCEL :
+					mVelocityTracker.clear();
+					resetMotion();
+					return false;
 			}
 			return false;
 		}
 		
 		private boolean actionDown(MotionEvent event)
 		{
+			resetMotion();
 			mMotionStartX = (int) event.getX();
 			mMotionStartY = (int) event.getY();
 			mFirstMotionEvent = false;
+			if(!mPageScroller.isFinished()) //catch the page where it is
+			{
+				stopPageSettle();
+			}
+			mCallScrollToPageInOnLayout = false; //and don't let a layout while the finger is down jump it back
 			return false;
 		}
 		
@@ -548,7 +1168,9 @@ public class SwipeView extends HorizontalScrollView
 			if(mJustInterceptedAndIgnored)//if the intercept picked it up first, we need to give the horizontalscrollview ontouch an action down to enable it to scroll and follow your finger
 			{
 				mSendingDummyMotionEvent = true;
-				dispatchTouchEvent(MotionEvent.obtain(event.getDownTime(), event.getEventTime(), MotionEvent.ACTION_DOWN, mMotionStartX, mMotionStartY, event.getPressure(), event.getSize(), event.getMetaState(), event.getXPrecision(), event.getYPrecision(), event.getDeviceId(), event.getEdgeFlags()));
+				MotionEvent downEvent = MotionEvent.obtain(event.getDownTime(), event.getEventTime(), MotionEvent.ACTION_DOWN, mMotionStartX, mMotionStartY, event.getPressure(), event.getSize(), event.getMetaState(), event.getXPrecision(), event.getYPrecision(), event.getDeviceId(), event.getEdgeFlags());
+				dispatchTouchEvent(downEvent);
+				downEvent.recycle(); //back into MotionEvent's pool, so the next obtain doesn't allocate
 				mJustInterceptedAndIgnored = false;
 				
 				return true;
@@ -558,6 +1180,15 @@ public class SwipeView extends HorizontalScrollView
 		
 		private boolean actionUp(MotionEvent event)
 		{
+			mVelocityTracker.computeCurrentVelocity(1000, mMaximumFlingVelocity);
+			float velocity = mVelocityTracker.getXVelocity();
+			mVelocityTracker.clear();
+			if(Math.abs(velocity)>mMinimumFlingVelocity && Math.abs(mDistanceX)>mTouchSlop)
+			{
+				flingToPage(velocity);
+				return true;
+			}
+			
 			float fingerUpPosition = getScrollX();
             float numberOfPages = mLinearLayout.getMeasuredWidth() / mPageWidth;
             float fingerUpPage = fingerUpPosition/mPageWidth;
@@ -616,12 +1247,40 @@ public class SwipeView extends HorizontalScrollView
             }
             
             smoothScrollToPage((int)edgePosition/mPageWidth);
-            mFirstMotionEvent = true;
+            resetMotion();
+			return true;
+		}
+		
+		/**
+		 * Settle on the page a fling would have reached, at least one page on from the current page 
+		 * in the direction of the fling, and possibly several for a fast one
+		 * 
+		 * @param velocity The velocity of the finger in pixels per second, positive when moving backwards
+		 */
+		private void flingToPage(float velocity)
+		{
+			float projectedPosition = getScrollX() - velocity*FLING_PROJECTION_TIME;
+			int page = Math.round(projectedPosition/mPageWidth);
+			if(velocity<0)
+			{
+				page = Math.max(page, mCurrentPage+1);
+			}
+			else
+			{
+				page = Math.min(page, mCurrentPage-1);
+			}
+			page = Math.max(0, Math.min(getPageCount()-1, page));
+			
+			smoothScrollToPage(page, page!=mCurrentPage ? velocity : 0); //no fling speed when just flung towards an edge
+			resetMotion();
+		}
+		
+		private void resetMotion()
+		{
+			mFirstMotionEvent = true;
 			mDistanceX = 0;
 			mMostlyScrollingInX = false;
 			mMostlyScrollingInY = false;
-			
-			return true;
 		}
 	}
 }	
\ No newline at end of file
@@ -0,0 +1,104 @@
+package uk.co.jasonfry.android.tools.util;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * A ScaledImageBatch.Throttle that pauses the batch while the battery is low and not charging, or while
+ * the battery is hot. The battery state is read from the sticky ACTION_BATTERY_CHANGED broadcast, so
+ * no receiver has to be registered or unregistered.
+ */
+public class BatteryThrottle implements ScaledImageBatch.Throttle
+{
+	public static final int DEFAULT_MIN_LEVEL = 20;
+	public static final int DEFAULT_MAX_TEMPERATURE = 400; //tenths of a degree, so 40C
+	public static final long DEFAULT_PAUSE_TIME = 30*1000;
+
+	private static final long CHECK_INTERVAL = 10*1000;
+
+	private final Context mContext;
+	private int mMinLevel = DEFAULT_MIN_LEVEL;
+	private int mMaxTemperature = DEFAULT_MAX_TEMPERATURE;
+	private long mPauseTime = DEFAULT_PAUSE_TIME;
+	private long mLastCheckTime = 0;
+	private long mLastPause = 0;
+
+	/**
+	 * @param context Any context, the application context is kept
+	 */
+	public BatteryThrottle(Context context)
+	{
+		mContext = context.getApplicationContext();
+	}
+
+	/**
+	 * @param minLevel The battery percentage below which the batch pauses, unless it is charging
+	 */
+	public synchronized void setMinLevel(int minLevel)
+	{
+		mMinLevel = minLevel;
+	}
+
+	/**
+	 * @param maxTemperature The battery temperature, in tenths of a degree Celsius, above which the batch pauses
+	 */
+	public synchronized void setMaxTemperature(int maxTemperature)
+	{
+		mMaxTemperature = maxTemperature;
+	}
+
+	/**
+	 * @param pauseTime How long to pause for, in milliseconds, before checking again
+	 */
+	public synchronized void setPauseTime(long pauseTime)
+	{
+		mPauseTime = pauseTime;
+	}
+
+	/**
+	 * The battery is checked at most every few seconds, workers asking in between get the last answer
+	 */
+	public synchronized long getPauseTime()
+	{
+		long now = System.currentTimeMillis();
+		if(now-mLastCheckTime<CHECK_INTERVAL)
+		{
+			return mLastPause;
+		}
+		mLastCheckTime = now;
+
+		Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if(battery==null)
+		{
+			mLastPause = 0;
+			return 0;
+		}
+		mLastPause = shouldPause(battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1), battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1),
+				battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0)!=0, battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0)) ? mPauseTime : 0;
+		return mLastPause;
+	}
+
+	/**
+	 * Decide whether to pause from the battery state, without needing a device to ask
+	 *
+	 * @param level The battery level
+	 * @param scale The level that means full
+	 * @param plugged Whether the device is plugged in
+	 * @param temperature The battery temperature in tenths of a degree Celsius
+	 * @return true if the batch should pause
+	 */
+	public synchronized boolean shouldPause(int level, int scale, boolean plugged, int temperature)
+	{
+		if(temperature>mMaxTemperature)
+		{
+			return true;
+		}
+		if(!plugged && level>=0 && scale>0)
+		{
+			return level * 100 / scale < mMinLevel;
+		}
+		return false;
+	}
+}
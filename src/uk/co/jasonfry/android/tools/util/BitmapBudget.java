@@ -0,0 +1,315 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+
+/**
+ * Keeps count of the bytes used by the bitmaps BitmapUtil has handed out, and keeps them under a ceiling.
+ * When a decode wouldn't fit, the BitmapPool and then the BitmapCache are trimmed, and if that still
+ * isn't enough the decode is sampled down further so it does fit.
+ *
+ * Bitmaps are counted from when BitmapUtil decodes them until they are given back with
+ * BitmapUtil.releaseBitmap, are trimmed out of the BitmapCache by the budget, or are garbage collected.
+ * Bitmaps sitting in the BitmapPool are counted once, as pool bytes, until they are taken out to be
+ * decoded into.
+ *
+ * Set one on BitmapUtil with BitmapUtil.setBitmapBudget(budget), and pass on the Application's
+ * onTrimMemory and onLowMemory calls so it can let go of memory when the system is short.
+ */
+public class BitmapBudget
+{
+	//the same values as ComponentCallbacks2, which isn't there before ice cream sandwich
+	public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+	public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+	public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+	public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+	public static final int TRIM_MEMORY_BACKGROUND = 40;
+	public static final int TRIM_MEMORY_MODERATE = 60;
+	public static final int TRIM_MEMORY_COMPLETE = 80;
+
+	private static final int MAX_EXTRA_SAMPLE_SIZE = 8;
+
+	private final ArrayList<TrackedBitmap> mTracked = new ArrayList<TrackedBitmap>();
+	private final ReferenceQueue<Bitmap> mCollected = new ReferenceQueue<Bitmap>();
+	private int mMaxSize;
+	private int mLiveSize = 0;
+	private int mHighWaterMark = 0;
+	private int mTrimCount = 0;
+	private int mReducedDecodeCount = 0;
+
+	/**
+	 * @param maxSize The maximum number of bytes of bitmaps to have handed out at once
+	 */
+	public BitmapBudget(int maxSize)
+	{
+		if(maxSize<=0)
+		{
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Make a budget of a fraction of the heap, e.g. 0.5f for half of it
+	 *
+	 * @param fraction The fraction of Runtime.maxMemory() to allow
+	 * @return The budget
+	 */
+	public static BitmapBudget forHeapFraction(float fraction)
+	{
+		return new BitmapBudget((int) Math.min(Integer.MAX_VALUE, Math.max(1, (long) (Runtime.getRuntime().maxMemory() * fraction))));
+	}
+
+	/**
+	 * Start counting a bitmap. Counting the same bitmap twice does nothing.
+	 *
+	 * @param bitmap The bitmap that has been handed out
+	 */
+	public synchronized void track(Bitmap bitmap)
+	{
+		if(bitmap==null || bitmap.isRecycled())
+		{
+			return;
+		}
+		pollCollected();
+		if(indexOf(bitmap)>=0)
+		{
+			return;
+		}
+		TrackedBitmap tracked = new TrackedBitmap(bitmap, BitmapCache.getBitmapSize(bitmap), mCollected);
+		mTracked.add(tracked);
+		mLiveSize += tracked.mSize;
+		updateHighWaterMark();
+	}
+
+	/**
+	 * Stop counting a bitmap, because it has been given back or recycled
+	 *
+	 * @param bitmap The bitmap
+	 */
+	public synchronized void untrack(Bitmap bitmap)
+	{
+		pollCollected();
+		int index = indexOf(bitmap);
+		if(index>=0)
+		{
+			TrackedBitmap tracked = mTracked.remove(index);
+			tracked.clear();
+			mLiveSize -= tracked.mSize;
+		}
+	}
+
+	/**
+	 * Make room for a decode. If the decode doesn't fit, the pool and then the cache are trimmed, and if
+	 * it still doesn't fit the returned number is how much further the decode should be sampled.
+	 *
+	 * @param byteCount The number of bytes the decoded bitmap would use
+	 * @return A power of 2 to multiply the sample size by, 1 if the decode fits as it is
+	 */
+	public synchronized int getExtraSampleSize(int byteCount)
+	{
+		pollCollected();
+		if(getSize()+byteCount<=mMaxSize)
+		{
+			return 1;
+		}
+
+		int needed = getSize() + byteCount - mMaxSize;
+		BitmapPool bitmapPool = BitmapUtil.getBitmapPool();
+		if(bitmapPool!=null)
+		{
+			bitmapPool.trimToSize(Math.max(-1, bitmapPool.size() - needed));
+		}
+		BitmapCache bitmapCache = BitmapUtil.getBitmapCache();
+		if(getSize()+byteCount>mMaxSize && bitmapCache!=null)
+		{
+			bitmapCache.trimToSize(Math.max(-1, bitmapCache.size() - needed), this); //only frees memory for bitmaps nothing else is holding on to, but stops counting them now so the decode isn't shrunk for memory that is about to go
+		}
+		mTrimCount++;
+
+		int extraSampleSize = 1;
+		long sampledByteCount = byteCount;
+		while(getSize()+sampledByteCount>mMaxSize && extraSampleSize<MAX_EXTRA_SAMPLE_SIZE)
+		{
+			extraSampleSize *= 2;
+			sampledByteCount /= 4;
+		}
+		if(extraSampleSize>1)
+		{
+			mReducedDecodeCount++;
+		}
+		return extraSampleSize;
+	}
+
+	/**
+	 * Let go of memory as the system asks, pass on calls from ComponentCallbacks2.onTrimMemory
+	 *
+	 * @param level The level passed to onTrimMemory
+	 */
+	public synchronized void onTrimMemory(int level) //the budget is locked before the cache, the same order as getExtraSampleSize
+	{
+		BitmapPool bitmapPool = BitmapUtil.getBitmapPool();
+		BitmapCache bitmapCache = BitmapUtil.getBitmapCache();
+		if(level>=TRIM_MEMORY_MODERATE || level==TRIM_MEMORY_RUNNING_CRITICAL)
+		{
+			if(bitmapPool!=null)
+			{
+				bitmapPool.evictAll();
+			}
+			if(bitmapCache!=null)
+			{
+				bitmapCache.trimToSize(-1, this);
+			}
+		}
+		else if(level>=TRIM_MEMORY_UI_HIDDEN || level==TRIM_MEMORY_RUNNING_LOW)
+		{
+			if(bitmapPool!=null)
+			{
+				bitmapPool.evictAll();
+			}
+			if(bitmapCache!=null)
+			{
+				bitmapCache.trimToSize(bitmapCache.maxSize()/2, this);
+			}
+		}
+		else if(level>=TRIM_MEMORY_RUNNING_MODERATE && bitmapPool!=null)
+		{
+			bitmapPool.trimToSize(bitmapPool.maxSize()/2);
+		}
+		mTrimCount++;
+		pollCollected();
+	}
+
+	/**
+	 * Let go of everything that can be let go of, pass on calls from ComponentCallbacks.onLowMemory
+	 */
+	public void onLowMemory()
+	{
+		onTrimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
+	/**
+	 * @return The number of bytes used by the bitmaps that have been handed out and the bitmaps in the pool
+	 */
+	public synchronized int getSize()
+	{
+		BitmapPool bitmapPool = BitmapUtil.getBitmapPool();
+		return mLiveSize + (bitmapPool!=null ? bitmapPool.size() : 0);
+	}
+
+	/**
+	 * @return The number of bytes used by the bitmaps that have been handed out and not given back yet
+	 */
+	public synchronized int getLiveSize()
+	{
+		pollCollected();
+		return mLiveSize;
+	}
+
+	/**
+	 * @return The number of bitmaps that have been handed out and not given back yet
+	 */
+	public synchronized int getLiveCount()
+	{
+		pollCollected();
+		return mTracked.size();
+	}
+
+	/**
+	 * @return The most bytes that have been in use at once since this budget was made or resetHighWaterMark was called
+	 */
+	public synchronized int getHighWaterMark()
+	{
+		return mHighWaterMark;
+	}
+
+	public synchronized void resetHighWaterMark()
+	{
+		mHighWaterMark = getSize();
+	}
+
+	public synchronized int maxSize()
+	{
+		return mMaxSize;
+	}
+
+	/**
+	 * Change the ceiling, e.g. when the app moves to the background
+	 *
+	 * @param maxSize The new maximum number of bytes
+	 */
+	public synchronized void setMaxSize(int maxSize)
+	{
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * @return The number of times caches have been trimmed to make room
+	 */
+	public synchronized int trimCount()
+	{
+		return mTrimCount;
+	}
+
+	/**
+	 * @return The number of decodes that were sampled down further to fit
+	 */
+	public synchronized int reducedDecodeCount()
+	{
+		return mReducedDecodeCount;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "BitmapBudget[size="+getSize()+",liveSize="+mLiveSize+",maxSize="+mMaxSize+",highWaterMark="+mHighWaterMark+",trims="+mTrimCount+",reducedDecodes="+mReducedDecodeCount+"]";
+	}
+
+	private int indexOf(Bitmap bitmap)
+	{
+		for(int i=0; i<mTracked.size(); i++)
+		{
+			if(mTracked.get(i).get()==bitmap)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void pollCollected()
+	{
+		Reference<? extends Bitmap> reference;
+		while((reference = mCollected.poll())!=null)
+		{
+			if(mTracked.remove(reference))
+			{
+				mLiveSize -= ((TrackedBitmap) reference).mSize;
+			}
+		}
+	}
+
+	private void updateHighWaterMark()
+	{
+		int size = getSize();
+		if(size>mHighWaterMark)
+		{
+			mHighWaterMark = size;
+		}
+	}
+
+	private static class TrackedBitmap extends WeakReference<Bitmap>
+	{
+		private final int mSize;
+
+		public TrackedBitmap(Bitmap bitmap, int size, ReferenceQueue<Bitmap> queue)
+		{
+			super(bitmap, queue);
+			mSize = size;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * A memory cache of decoded bitmaps, bounded by the number of bytes the bitmaps use rather than
+ * by the number of entries. The least recently used bitmaps are evicted first.
+ *
+ * Set one on BitmapUtil with BitmapUtil.setBitmapCache(cache) and decodeFile and getThumbnail
+ * will check it before going to disk.
+ */
+public class BitmapCache
+{
+	private final LinkedHashMap<String, Bitmap> mMap;
+	private int mMaxSize;
+	private int mSize = 0;
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mPutCount = 0;
+	private int mEvictionCount = 0;
+
+	/**
+	 * @param maxSize The maximum number of bytes the cached bitmaps may use
+	 */
+	public BitmapCache(int maxSize)
+	{
+		if(maxSize<=0)
+		{
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		mMap = new LinkedHashMap<String, Bitmap>(0, 0.75f, true); //access order, so iteration starts at the least recently used
+	}
+
+	/**
+	 * Get a bitmap from the cache, this moves it to the head of the queue
+	 *
+	 * @param key The key made by one of the key() methods
+	 * @return The cached bitmap, or null if it isn't in the cache
+	 */
+	public synchronized Bitmap get(String key)
+	{
+		Bitmap bitmap = mMap.get(key);
+		if(bitmap!=null && !bitmap.isRecycled())
+		{
+			mHitCount++;
+			return bitmap;
+		}
+		if(bitmap!=null) //recycled by someone else, it's no use to us any more
+		{
+			remove(key);
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Check whether a bitmap is cached, without counting a hit or miss or moving it to the head of the queue
+	 *
+	 * @param key The key made by one of the key() methods
+	 * @return true if there is a bitmap cached with the key
+	 */
+	public synchronized boolean contains(String key)
+	{
+		return mMap.containsKey(key); //get would move the entry in an access ordered map
+	}
+
+	/**
+	 * Put a bitmap in the cache, evicting the least recently used bitmaps if the cache is now too big
+	 *
+	 * @param key The key made by one of the key() methods
+	 * @param bitmap The bitmap to cache
+	 * @return The bitmap previously cached with this key, or null
+	 */
+	public synchronized Bitmap put(String key, Bitmap bitmap)
+	{
+		if(key==null || bitmap==null)
+		{
+			return null;
+		}
+
+		mPutCount++;
+		mSize += getBitmapSize(bitmap);
+		Bitmap previous = mMap.put(key, bitmap);
+		if(previous!=null)
+		{
+			mSize -= getBitmapSize(previous);
+		}
+		trimToSize(mMaxSize);
+		return previous;
+	}
+
+	/**
+	 * Remove a bitmap from the cache
+	 *
+	 * @param key The key made by one of the key() methods
+	 * @return The bitmap that was removed, or null
+	 */
+	public synchronized Bitmap remove(String key)
+	{
+		Bitmap previous = mMap.remove(key);
+		if(previous!=null)
+		{
+			mSize -= getBitmapSize(previous);
+		}
+		return previous;
+	}
+
+	/**
+	 * Remove every entry that holds this bitmap, for when the bitmap is about to be reused or recycled
+	 *
+	 * @param bitmap The bitmap to remove
+	 * @return true if the bitmap was in the cache
+	 */
+	public synchronized boolean removeBitmap(Bitmap bitmap)
+	{
+		boolean removed = false;
+		Iterator<Map.Entry<String, Bitmap>> iterator = mMap.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			if(iterator.next().getValue()==bitmap)
+			{
+				iterator.remove();
+				mSize -= getBitmapSize(bitmap);
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Check whether the cache is holding a bitmap, without counting a hit or miss or moving anything in the queue
+	 *
+	 * @param bitmap The bitmap to look for
+	 * @return true if the bitmap is in the cache under any key
+	 */
+	public synchronized boolean containsBitmap(Bitmap bitmap)
+	{
+		return mMap.containsValue(bitmap);
+	}
+
+	/**
+	 * Evict the least recently used bitmaps until the cache uses no more than maxSize bytes
+	 *
+	 * @param maxSize The number of bytes to trim down to, -1 evicts everything
+	 */
+	public synchronized void trimToSize(int maxSize)
+	{
+		trimToSize(maxSize, null);
+	}
+
+	/**
+	 * Trim the cache for a BitmapBudget, which stops counting the evicted bitmaps straight away rather than
+	 * when they are garbage collected
+	 */
+	synchronized void trimToSize(int maxSize, BitmapBudget bitmapBudget)
+	{
+		Iterator<Map.Entry<String, Bitmap>> iterator = mMap.entrySet().iterator();
+		while(mSize>maxSize && iterator.hasNext())
+		{
+			Bitmap bitmap = iterator.next().getValue();
+			iterator.remove();
+			mSize -= getBitmapSize(bitmap);
+			mEvictionCount++;
+			if(bitmapBudget!=null)
+			{
+				bitmapBudget.untrack(bitmap);
+			}
+		}
+	}
+
+	/**
+	 * Evict everything from the cache
+	 */
+	public synchronized void evictAll()
+	{
+		trimToSize(-1);
+	}
+
+	/**
+	 * @return The number of bytes the cached bitmaps use
+	 */
+	public synchronized int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * @return The maximum number of bytes the cached bitmaps may use
+	 */
+	public synchronized int maxSize()
+	{
+		return mMaxSize;
+	}
+
+	/**
+	 * Change the maximum number of bytes the cached bitmaps may use, evicting bitmaps if needed
+	 *
+	 * @param maxSize The new maximum size in bytes
+	 */
+	public synchronized void setMaxSize(int maxSize)
+	{
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * @return The number of bitmaps in the cache
+	 */
+	public synchronized int count()
+	{
+		return mMap.size();
+	}
+
+	public synchronized int hitCount()
+	{
+		return mHitCount;
+	}
+
+	public synchronized int missCount()
+	{
+		return mMissCount;
+	}
+
+	public synchronized int putCount()
+	{
+		return mPutCount;
+	}
+
+	public synchronized int evictionCount()
+	{
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		int accesses = mHitCount + mMissCount;
+		int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+		return "BitmapCache[size="+mSize+",maxSize="+mMaxSize+",hits="+mHitCount+",misses="+mMissCount+",evictions="+mEvictionCount+",hitRate="+hitPercent+"%]";
+	}
+
+	/**
+	 * Make the key for a file decoded by BitmapUtil.decodeFile. The key includes the last modified time,
+	 * so an edited file will not be served from the cache.
+	 *
+	 * @param file The image file
+	 * @param size The size passed to decodeFile
+	 * @param square Whether the image is cropped to a square
+	 * @return The cache key
+	 */
+	public static String key(File file, int size, boolean square)
+	{
+		return key(file, size, square, null);
+	}
+
+	/**
+	 * Make the key for a file decoded by BitmapUtil.decodeFile with DecodeOptions, so files decoded with
+	 * different options are cached separately
+	 *
+	 * @param file The image file
+	 * @param size The size passed to decodeFile
+	 * @param square Whether the image is cropped to a square
+	 * @param decodeOptions The options passed to decodeFile, can be null
+	 * @return The cache key
+	 */
+	public static String key(File file, int size, boolean square, DecodeOptions decodeOptions)
+	{
+		String key = file.getAbsolutePath()+"|"+file.lastModified()+"|"+size+"|"+(square ? "s" : "f");
+		if(decodeOptions!=null)
+		{
+			key += decodeOptions.getKeyFlags();
+		}
+		return key;
+	}
+
+	/**
+	 * Make the key for a file decoded by BitmapUtil.decodeFile with a BitmapTransform
+	 *
+	 * @param file The image file
+	 * @param transform The transform passed to decodeFile
+	 * @param decodeOptions The options passed to decodeFile, can be null
+	 * @return The cache key
+	 */
+	public static String key(File file, BitmapTransform transform, DecodeOptions decodeOptions)
+	{
+		String key = file.getAbsolutePath()+"|"+file.lastModified()+"|t"+transform.getKey();
+		if(decodeOptions!=null)
+		{
+			key += decodeOptions.getKeyFlags();
+		}
+		return key;
+	}
+
+	/**
+	 * Make the key for a MediaStore thumbnail fetched by BitmapUtil.getThumbnail
+	 *
+	 * @param id The MediaStore id of the image
+	 * @return The cache key
+	 */
+	public static String key(long id)
+	{
+		return "mediastore|"+id;
+	}
+
+	/**
+	 * @param bitmap The bitmap to measure
+	 * @return The number of bytes used to store the bitmap's pixels
+	 */
+	public static int getBitmapSize(Bitmap bitmap)
+	{
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,445 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Runs BitmapUtil decodes off the UI thread. Each request returns a Task that can be cancelled,
+ * and the result is delivered to a Callback on the main looper. Requests wait in a priority queue
+ * so pages that are on screen get decoded before ones that are only being prefetched.
+ *
+ * By default the work runs on a small pool of background threads. To test code that uses a
+ * BitmapLoader, e.g. under Robolectric, pass in an Executor that you control and the Handler
+ * that results should be posted to.
+ */
+public class BitmapLoader
+{
+	public static final int PRIORITY_PREFETCH = 0;
+	public static final int PRIORITY_NORMAL = 5;
+	public static final int PRIORITY_VISIBLE = 10;
+
+	private static final int KEEP_ALIVE_SECONDS = 5;
+
+	private static BitmapLoader sDefaultLoader;
+
+	private final PriorityBlockingQueue<Task> mQueue = new PriorityBlockingQueue<Task>();
+	private final AtomicLong mSequence = new AtomicLong();
+	private final Executor mExecutor;
+	private final Handler mHandler;
+	private final Runnable mRunNextTask = new Runnable()
+	{
+		public void run()
+		{
+			Task task = mQueue.poll();
+			if(task!=null)
+			{
+				task.run();
+			}
+		}
+	};
+
+	/**
+	 * Make a BitmapLoader that decodes on a pool of background threads, one for each core (at least two),
+	 * and delivers results on the main looper
+	 */
+	public BitmapLoader()
+	{
+		this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Make a BitmapLoader that decodes on a pool of background threads and delivers results on the main looper
+	 *
+	 * @param threadCount The maximum number of decodes to run at once
+	 */
+	public BitmapLoader(int threadCount)
+	{
+		this(createExecutor(threadCount), new Handler(Looper.getMainLooper()));
+	}
+
+	/**
+	 * Make a BitmapLoader that runs its work on the given executor and posts results to the given handler
+	 *
+	 * @param executor Where to run the decodes, e.g. a direct executor in tests
+	 * @param handler Where to deliver the results
+	 */
+	public BitmapLoader(Executor executor, Handler handler)
+	{
+		mExecutor = executor;
+		mHandler = handler;
+	}
+
+	/**
+	 * Get a BitmapLoader shared by the whole app, made the first time it is asked for
+	 *
+	 * @return The shared BitmapLoader
+	 */
+	public static synchronized BitmapLoader getDefault()
+	{
+		if(sDefaultLoader==null)
+		{
+			sDefaultLoader = new BitmapLoader();
+		}
+		return sDefaultLoader;
+	}
+
+	/**
+	 * Replace the BitmapLoader returned by getDefault(), e.g. with one using a controllable executor in tests
+	 *
+	 * @param bitmapLoader The loader to share
+	 */
+	public static synchronized void setDefault(BitmapLoader bitmapLoader)
+	{
+		sDefaultLoader = bitmapLoader;
+	}
+
+	/**
+	 * Decode a file with BitmapUtil.decodeFile in the background
+	 *
+	 * @param file The image file
+	 * @param size The size the shortest side should be
+	 * @param square Whether to crop the centre square out of the image
+	 * @param priority How important the request is, e.g. PRIORITY_VISIBLE or PRIORITY_PREFETCH
+	 * @param callback Given the bitmap on the main looper, unless the task is cancelled first
+	 * @return The Task, which can be cancelled or reprioritised
+	 */
+	public Task load(File file, int size, boolean square, int priority, Callback callback)
+	{
+		return load(file, size, square, null, priority, callback);
+	}
+
+	/**
+	 * Decode a file with BitmapUtil.decodeFile in the background
+	 *
+	 * @param file The image file
+	 * @param size The size the shortest side should be
+	 * @param square Whether to crop the centre square out of the image
+	 * @param decodeOptions The options to decode with, which are written to on the background thread. Can be null
+	 * @param priority How important the request is, e.g. PRIORITY_VISIBLE or PRIORITY_PREFETCH
+	 * @param callback Given the bitmap on the main looper, unless the task is cancelled first
+	 * @return The Task, which can be cancelled or reprioritised
+	 */
+	public Task load(final File file, final int size, final boolean square, final DecodeOptions decodeOptions, int priority, Callback callback)
+	{
+		return submit(new Job()
+		{
+			public Bitmap run(Task task)
+			{
+				return BitmapUtil.decodeFile(file, size, square, decodeOptions);
+			}
+		}, priority, callback);
+	}
+
+	/**
+	 * Decode a file in two stages, so there is something to show straight away. First a coarse preview from
+	 * BitmapUtil.decodePreview is handed to callback.onPreviewLoaded, then the full BitmapUtil.decodeFile 
+	 * result is handed to callback.onBitmapLoaded. Cancelling the task stops both. If the full bitmap is 
+	 * already in the BitmapCache there is no preview.
+	 *
+	 * @param file The image file
+	 * @param size The size the shortest side should be
+	 * @param square Whether to crop the centre square out of the image
+	 * @param decodeOptions The options to decode the full bitmap with, which are written to on the background thread. Can be null
+	 * @param priority How important the request is, e.g. PRIORITY_VISIBLE or PRIORITY_PREFETCH
+	 * @param callback Given the preview and then the full bitmap on the main looper, unless the task is cancelled first
+	 * @return The Task, which can be cancelled or reprioritised
+	 */
+	public Task loadProgressive(final File file, final int size, final boolean square, final DecodeOptions decodeOptions, int priority, ProgressiveCallback callback)
+	{
+		return submit(new Job()
+		{
+			public Bitmap run(Task task)
+			{
+				BitmapCache bitmapCache = BitmapUtil.getBitmapCache();
+				if(bitmapCache==null || !bitmapCache.contains(BitmapCache.key(file, size, square, decodeOptions)))
+				{
+					Bitmap preview = BitmapUtil.decodePreview(file, size, square);
+					if(preview!=null)
+					{
+						task.publishPreview(preview);
+					}
+				}
+				if(task.isCancelled())
+				{
+					return null;
+				}
+				return BitmapUtil.decodeFile(file, size, square, decodeOptions);
+			}
+		}, priority, callback);
+	}
+
+	/**
+	 * Run any piece of bitmap work in the background
+	 *
+	 * @param job The work to do
+	 * @param priority How important the request is, e.g. PRIORITY_VISIBLE or PRIORITY_PREFETCH
+	 * @param callback Given the bitmap on the main looper, unless the task is cancelled first. Can be null
+	 * @return The Task, which can be cancelled or reprioritised
+	 */
+	public Task submit(Job job, int priority, Callback callback)
+	{
+		Task task = new Task(job, priority, callback);
+		mQueue.add(task);
+		mExecutor.execute(mRunNextTask);
+		return task;
+	}
+
+	/**
+	 * Cancel every task that hasn't delivered its result yet
+	 */
+	public void cancelAll()
+	{
+		Task[] tasks = mQueue.toArray(new Task[0]);
+		for(int i=0; i<tasks.length; i++)
+		{
+			tasks[i].cancel();
+		}
+	}
+
+	/**
+	 * @return The number of tasks waiting to be run
+	 */
+	public int getQueuedCount()
+	{
+		return mQueue.size();
+	}
+
+	private static Executor createExecutor(int threadCount)
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			private final AtomicInteger mCount = new AtomicInteger(1);
+
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "BitmapLoader #"+mCount.getAndIncrement());
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * A piece of bitmap work, run on a background thread
+	 */
+	public interface Job
+	{
+		/**
+		 * Do the work
+		 *
+		 * @param task The task running the job, check task.isCancelled() to give up early
+		 * @return The bitmap to hand to the Callback
+		 */
+		public abstract Bitmap run(Task task);
+	}
+
+	/**
+	 * Implement this to be given the result of a Task
+	 */
+	public interface Callback
+	{
+		/**
+		 * Called on the main looper when a task finishes, never called if the task was cancelled
+		 *
+		 * @param task The task that finished
+		 * @param bitmap The bitmap, or null if it couldn't be decoded
+		 */
+		public abstract void onBitmapLoaded(Task task, Bitmap bitmap);
+	}
+
+	/**
+	 * Implement this to be given a preview before the result of a Task, e.g. with loadProgressive
+	 */
+	public interface ProgressiveCallback extends Callback
+	{
+		/**
+		 * Called on the main looper when a preview is ready, never called if the task was cancelled or has
+		 * already delivered its result
+		 *
+		 * @param task The task that made the preview
+		 * @param preview A low resolution version of the bitmap that will be passed to onBitmapLoaded
+		 */
+		public abstract void onPreviewLoaded(Task task, Bitmap preview);
+	}
+
+	/**
+	 * A handle on a request made to a BitmapLoader
+	 */
+	public final class Task implements Comparable<Task>
+	{
+		private final Job mJob;
+		private final Callback mCallback;
+		private final long mSequence;
+		private volatile int mPriority;
+		private volatile boolean mCancelled = false;
+		private volatile boolean mFinished = false;
+
+		private Task(Job job, int priority, Callback callback)
+		{
+			mJob = job;
+			mPriority = priority;
+			mCallback = callback;
+			mSequence = BitmapLoader.this.mSequence.getAndIncrement();
+		}
+
+		/**
+		 * Cancel the task. If it hasn't started it never will, if it is running its result is thrown away.
+		 * When called on the main looper the callback is guaranteed not to be called after this.
+		 */
+		public void cancel()
+		{
+			mCancelled = true;
+			mQueue.remove(this);
+		}
+
+		public boolean isCancelled()
+		{
+			return mCancelled;
+		}
+
+		/**
+		 * @return true once the result has been delivered, or the job has finished with no callback to deliver to
+		 */
+		public boolean isFinished()
+		{
+			return mFinished;
+		}
+
+		public int getPriority()
+		{
+			return mPriority;
+		}
+
+		/**
+		 * Change the priority of a task that hasn't started yet, e.g. when a prefetched page scrolls into view
+		 *
+		 * @param priority The new priority
+		 */
+		public void setPriority(int priority)
+		{
+			if(mPriority!=priority && mQueue.remove(this))
+			{
+				mPriority = priority;
+				mQueue.add(this);
+			}
+			else
+			{
+				mPriority = priority;
+			}
+		}
+
+		/**
+		 * Hand a preview to the task's callback on the main looper, if the callback is a ProgressiveCallback.
+		 * Call this from a Job while it is still working on the full bitmap.
+		 *
+		 * @param preview The preview
+		 */
+		public void publishPreview(final Bitmap preview)
+		{
+			if(mCancelled || !(mCallback instanceof ProgressiveCallback))
+			{
+				return;
+			}
+			mHandler.post(new Runnable()
+			{
+				public void run()
+				{
+					if(!mCancelled && !mFinished)
+					{
+						((ProgressiveCallback) mCallback).onPreviewLoaded(Task.this, preview);
+					}
+				}
+			});
+		}
+
+		public int compareTo(Task another)
+		{
+			if(mPriority!=another.mPriority)
+			{
+				return mPriority > another.mPriority ? -1 : 1; //highest priority first
+			}
+			return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1); //then first come first served
+		}
+
+		private void run()
+		{
+			if(mCancelled)
+			{
+				return;
+			}
+
+			Bitmap result;
+			try
+			{
+				result = mJob.run(this);
+			}
+			catch(RuntimeException e) //a job that throws still gets its callback, and the worker carries on
+			{
+				e.printStackTrace();
+				result = null;
+			}
+			catch(OutOfMemoryError e)
+			{
+				e.printStackTrace();
+				result = null;
+			}
+			final Bitmap bitmap = result;
+			if(mCallback==null)
+			{
+				mFinished = true;
+				return;
+			}
+			if(mCancelled)
+			{
+				releaseUnused(bitmap);
+				return;
+			}
+			mHandler.post(new Runnable()
+			{
+				public void run()
+				{
+					if(!mCancelled)
+					{
+						mFinished = true;
+						mCallback.onBitmapLoaded(Task.this, bitmap);
+					}
+					else
+					{
+						releaseUnused(bitmap);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Give the bitmap of a cancelled task back to the BitmapPool, unless the BitmapCache is still handing it out
+	 */
+	private static void releaseUnused(Bitmap bitmap)
+	{
+		BitmapCache bitmapCache = BitmapUtil.getBitmapCache();
+		if(bitmap!=null && (bitmapCache==null || !bitmapCache.containsBitmap(bitmap)))
+		{
+			BitmapUtil.releaseBitmap(bitmap);
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+
+/**
+ * A pool of mutable bitmaps that are no longer being shown, so that BitmapUtil can decode and draw
+ * into them instead of allocating new ones. Bitmaps are bucketed by config and byte size, and the
+ * oldest are evicted first once the pool holds more than its maximum number of bytes.
+ *
+ * The pool also hands out the scratch buffers used for BitmapFactory.Options.inTempStorage.
+ *
+ * Set one on BitmapUtil with BitmapUtil.setBitmapPool(pool) and give bitmaps back to it with
+ * BitmapUtil.releaseBitmap(bitmap) once nothing is drawing them.
+ */
+public class BitmapPool
+{
+	public static final int TEMP_STORAGE_SIZE = 16*1024;
+	private static final int MAX_TEMP_STORAGE_BUFFERS = 4;
+
+	private final HashMap<Long, LinkedList<Bitmap>> mBuckets = new HashMap<Long, LinkedList<Bitmap>>();
+	private final LinkedList<Bitmap> mAge = new LinkedList<Bitmap>(); //oldest first
+	private final ArrayList<byte[]> mTempStorage = new ArrayList<byte[]>(MAX_TEMP_STORAGE_BUFFERS);
+	private int mMaxSize;
+	private int mSize = 0;
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mPutCount = 0;
+	private int mEvictionCount = 0;
+
+	/**
+	 * @param maxSize The maximum number of bytes the pooled bitmaps may use
+	 */
+	public BitmapPool(int maxSize)
+	{
+		if(maxSize<=0)
+		{
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Get a bitmap out of the pool. Its pixels are left as they were, so erase it if you aren't going
+	 * to draw over all of it.
+	 *
+	 * @param width The width the bitmap must be
+	 * @param height The height the bitmap must be
+	 * @param config The config the bitmap must have
+	 * @return A mutable bitmap of exactly this size and config, or null if the pool doesn't have one
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+	{
+		LinkedList<Bitmap> bucket = mBuckets.get(bucketKey(config, getSize(width, height, config)));
+		if(bucket!=null)
+		{
+			Iterator<Bitmap> iterator = bucket.iterator();
+			while(iterator.hasNext())
+			{
+				Bitmap bitmap = iterator.next();
+				if(bitmap.getWidth()==width && bitmap.getHeight()==height)
+				{
+					iterator.remove();
+					mAge.remove(bitmap);
+					mSize -= getSize(bitmap);
+					mHitCount++;
+					return bitmap;
+				}
+			}
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Get a bitmap out of the pool, or make a new one if the pool doesn't have one
+	 *
+	 * @param width The width of the bitmap
+	 * @param height The height of the bitmap
+	 * @param config The config of the bitmap
+	 * @return A mutable bitmap of exactly this size and config
+	 */
+	public Bitmap getOrCreate(int width, int height, Bitmap.Config config)
+	{
+		Bitmap bitmap = get(width, height, config);
+		if(bitmap==null)
+		{
+			bitmap = Bitmap.createBitmap(width, height, config);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Give a bitmap to the pool. Nothing else should draw the bitmap after this.
+	 *
+	 * @param bitmap The bitmap, which is ignored if it is recycled or immutable
+	 * @return true if the bitmap went into the pool
+	 */
+	public boolean put(Bitmap bitmap)
+	{
+		if(!putInPool(bitmap))
+		{
+			return false;
+		}
+		BitmapBudget bitmapBudget = BitmapUtil.getBitmapBudget();
+		if(bitmapBudget!=null && BitmapUtil.getBitmapPool()==this) //the budget counts it as pool bytes now, not as a bitmap handed out
+		{
+			bitmapBudget.untrack(bitmap);
+		}
+		return true;
+	}
+
+	private synchronized boolean putInPool(Bitmap bitmap)
+	{
+		if(bitmap==null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig()==null)
+		{
+			return false;
+		}
+		int size = getSize(bitmap);
+		if(size>mMaxSize || mAge.contains(bitmap))
+		{
+			return false;
+		}
+
+		Long key = bucketKey(bitmap.getConfig(), size);
+		LinkedList<Bitmap> bucket = mBuckets.get(key);
+		if(bucket==null)
+		{
+			bucket = new LinkedList<Bitmap>();
+			mBuckets.put(key, bucket);
+		}
+		bucket.add(bitmap);
+		mAge.add(bitmap);
+		mSize += size;
+		mPutCount++;
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * Evict the oldest bitmaps until the pool uses no more than maxSize bytes
+	 *
+	 * @param maxSize The number of bytes to trim down to, -1 evicts everything
+	 */
+	public synchronized void trimToSize(int maxSize)
+	{
+		while(mSize>maxSize && !mAge.isEmpty())
+		{
+			Bitmap bitmap = mAge.removeFirst();
+			int size = getSize(bitmap);
+			LinkedList<Bitmap> bucket = mBuckets.get(bucketKey(bitmap.getConfig(), size));
+			if(bucket!=null)
+			{
+				bucket.remove(bitmap);
+			}
+			mSize -= size;
+			mEvictionCount++;
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Evict everything from the pool
+	 */
+	public synchronized void evictAll()
+	{
+		trimToSize(-1);
+		mBuckets.clear();
+		mTempStorage.clear();
+	}
+
+	/**
+	 * Get a scratch buffer for BitmapFactory.Options.inTempStorage, give it back with releaseTempStorage
+	 *
+	 * @return A buffer of TEMP_STORAGE_SIZE bytes
+	 */
+	public synchronized byte[] obtainTempStorage()
+	{
+		if(!mTempStorage.isEmpty())
+		{
+			return mTempStorage.remove(mTempStorage.size()-1);
+		}
+		return new byte[TEMP_STORAGE_SIZE];
+	}
+
+	/**
+	 * Give back a buffer from obtainTempStorage once the decode using it has finished
+	 *
+	 * @param tempStorage The buffer
+	 */
+	public synchronized void releaseTempStorage(byte[] tempStorage)
+	{
+		if(tempStorage!=null && tempStorage.length==TEMP_STORAGE_SIZE && mTempStorage.size()<MAX_TEMP_STORAGE_BUFFERS)
+		{
+			mTempStorage.add(tempStorage);
+		}
+	}
+
+	/**
+	 * @return The number of bytes the pooled bitmaps use
+	 */
+	public synchronized int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * @return The maximum number of bytes the pooled bitmaps may use
+	 */
+	public synchronized int maxSize()
+	{
+		return mMaxSize;
+	}
+
+	/**
+	 * Change the maximum number of bytes the pooled bitmaps may use, evicting bitmaps if needed
+	 *
+	 * @param maxSize The new maximum size in bytes
+	 */
+	public synchronized void setMaxSize(int maxSize)
+	{
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * @return The number of bitmaps in the pool
+	 */
+	public synchronized int count()
+	{
+		return mAge.size();
+	}
+
+	public synchronized int hitCount()
+	{
+		return mHitCount;
+	}
+
+	public synchronized int missCount()
+	{
+		return mMissCount;
+	}
+
+	public synchronized int putCount()
+	{
+		return mPutCount;
+	}
+
+	public synchronized int evictionCount()
+	{
+		return mEvictionCount;
+	}
+
+	/**
+	 * @return The percentage of get calls that were given a bitmap
+	 */
+	public synchronized int hitRate()
+	{
+		int requests = mHitCount + mMissCount;
+		return requests != 0 ? (100 * mHitCount / requests) : 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "BitmapPool[size="+mSize+",maxSize="+mMaxSize+",count="+mAge.size()+",hits="+mHitCount+",misses="+mMissCount+",evictions="+mEvictionCount+",hitRate="+hitRate()+"%]";
+	}
+
+	/**
+	 * @param config A bitmap config
+	 * @return The number of bytes each pixel takes up in that config
+	 */
+	public static int getBytesPerPixel(Bitmap.Config config)
+	{
+		if(config==Bitmap.Config.ARGB_8888)
+		{
+			return 4;
+		}
+		else if(config==Bitmap.Config.ALPHA_8)
+		{
+			return 1;
+		}
+		return 2; //RGB_565 and ARGB_4444
+	}
+
+	private static int getSize(int width, int height, Bitmap.Config config)
+	{
+		return width * height * getBytesPerPixel(config);
+	}
+
+	private static int getSize(Bitmap bitmap)
+	{
+		return getSize(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+	}
+
+	private static Long bucketKey(Bitmap.Config config, int size)
+	{
+		return Long.valueOf(((long) config.ordinal() << 32) | size);
+	}
+}
@@ -0,0 +1,355 @@
+package uk.co.jasonfry.android.tools.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A description of a crop, a rotation and a scale, in that order, which are carried out together as
+ * one draw into one target bitmap. A rotated, cropped and scaled thumbnail then costs one decode and
+ * one draw, rather than a new full size bitmap for each step.
+ *
+ * Use it with BitmapUtil.decodeFile(File, BitmapTransform, DecodeOptions), or apply it to a bitmap you
+ * already have.
+ */
+public class BitmapTransform
+{
+	public static final int SCALE_NONE = 0;
+	public static final int SCALE_SHORTEST_SIDE = 1;
+	public static final int SCALE_WIDTH = 2;
+	public static final int SCALE_EXACT = 3;
+	public static final int SCALE_FIT = 4;
+	public static final int SCALE_FILL = 5;
+
+	private boolean mCropToSquare = false;
+	private Rect mCrop = null;
+	private int mRotation = 0;
+	private int mScaleMode = SCALE_NONE;
+	private int mTargetWidth = 0;
+	private int mTargetHeight = 0;
+	private Bitmap.Config mConfig = null;
+
+	public BitmapTransform()
+	{
+	}
+
+	/**
+	 * Crop to the centre square of the image
+	 *
+	 * @param cropToSquare true to crop to a square
+	 */
+	public void setCropToSquare(boolean cropToSquare)
+	{
+		mCropToSquare = cropToSquare;
+		mCrop = null;
+	}
+
+	public boolean getCropToSquare()
+	{
+		return mCropToSquare;
+	}
+
+	/**
+	 * Crop to part of the image
+	 *
+	 * @param crop The part to keep, in the coordinates of the full size image, or null to keep all of it
+	 */
+	public void setCrop(Rect crop)
+	{
+		mCrop = crop!=null ? new Rect(crop) : null;
+		mCropToSquare = false;
+	}
+
+	public Rect getCrop()
+	{
+		return mCrop;
+	}
+
+	/**
+	 * Rotate the image clockwise, after cropping
+	 *
+	 * @param rotation The rotation in degrees, which must be a multiple of 90
+	 */
+	public void setRotation(int rotation)
+	{
+		rotation = ((rotation % 360) + 360) % 360;
+		if(rotation % 90 != 0)
+		{
+			throw new IllegalArgumentException("rotation must be a multiple of 90, not "+rotation);
+		}
+		mRotation = rotation;
+	}
+
+	public int getRotation()
+	{
+		return mRotation;
+	}
+
+	/**
+	 * Scale the rotated image so its shortest side is size pixels, like BitmapUtil.decodeFile
+	 *
+	 * @param size The length of the shortest side
+	 */
+	public void setShortestSide(int size)
+	{
+		mScaleMode = SCALE_SHORTEST_SIDE;
+		mTargetWidth = size;
+		mTargetHeight = size;
+	}
+
+	/**
+	 * Scale the rotated image so it is width pixels wide, keeping its aspect ratio, like BitmapUtil.createScaledImage
+	 *
+	 * @param width The width of the finished image
+	 */
+	public void setTargetWidth(int width)
+	{
+		mScaleMode = SCALE_WIDTH;
+		mTargetWidth = width;
+		mTargetHeight = 0;
+	}
+
+	/**
+	 * Scale the rotated image to exactly this size, whatever its aspect ratio
+	 *
+	 * @param width The width of the finished image
+	 * @param height The height of the finished image
+	 */
+	public void setTargetSize(int width, int height)
+	{
+		mScaleMode = SCALE_EXACT;
+		mTargetWidth = width;
+		mTargetHeight = height;
+	}
+
+	/**
+	 * Scale the rotated image to the largest size that fits inside width x height, keeping its aspect ratio
+	 *
+	 * @param width The width to fit inside
+	 * @param height The height to fit inside
+	 */
+	public void setFitInside(int width, int height)
+	{
+		mScaleMode = SCALE_FIT;
+		mTargetWidth = width;
+		mTargetHeight = height;
+	}
+
+	/**
+	 * Scale the rotated image to the smallest size that covers width x height, keeping its aspect ratio
+	 *
+	 * @param width The width to cover
+	 * @param height The height to cover
+	 */
+	public void setFill(int width, int height)
+	{
+		mScaleMode = SCALE_FILL;
+		mTargetWidth = width;
+		mTargetHeight = height;
+	}
+
+	/**
+	 * Keep the image at its own size
+	 */
+	public void clearScale()
+	{
+		mScaleMode = SCALE_NONE;
+		mTargetWidth = 0;
+		mTargetHeight = 0;
+	}
+
+	public int getScaleMode()
+	{
+		return mScaleMode;
+	}
+
+	/**
+	 * Set the config of the finished bitmap, by default it is the same as the bitmap being transformed
+	 *
+	 * @param config The config, or null to match the source
+	 */
+	public void setConfig(Bitmap.Config config)
+	{
+		mConfig = config;
+	}
+
+	public Bitmap.Config getConfig()
+	{
+		return mConfig;
+	}
+
+	/**
+	 * Apply the transform to a bitmap
+	 *
+	 * @param source The bitmap to transform, which is left as it is
+	 * @param bitmapPool Where to get the finished bitmap from, can be null
+	 * @return A new bitmap, or source itself if the transform doesn't change it
+	 */
+	public Bitmap apply(Bitmap source, BitmapPool bitmapPool)
+	{
+		return apply(source, getSourceRect(source.getWidth(), source.getHeight()), 1f, bitmapPool);
+	}
+
+	/**
+	 * Work out which part of an image the transform keeps
+	 *
+	 * @param width The width of the full size image
+	 * @param height The height of the full size image
+	 * @return The part to keep, in full size image coordinates
+	 */
+	public Rect getSourceRect(int width, int height)
+	{
+		Rect sourceRect = new Rect(0, 0, width, height);
+		if(mCrop!=null)
+		{
+			if(!sourceRect.intersect(mCrop))
+			{
+				sourceRect.set(0, 0, width, height);
+			}
+		}
+		else if(mCropToSquare)
+		{
+			int side = Math.min(width, height);
+			int left = (width-side)/2;
+			int top = (height-side)/2;
+			sourceRect.set(left, top, left+side, top+side);
+		}
+		return sourceRect;
+	}
+
+	/**
+	 * Work out how much the kept part of a full size image is scaled by. It is never scaled up.
+	 *
+	 * @param sourceRect The part of the image being kept, from getSourceRect
+	 * @return The scale, 1 or less
+	 */
+	public float getScale(Rect sourceRect)
+	{
+		return Math.max(getScaleX(sourceRect, 1f), getScaleY(sourceRect, 1f)); //the axis that needs the most pixels decides
+	}
+
+	/**
+	 * A short string describing the transform, used in BitmapCache keys
+	 */
+	public String getKey()
+	{
+		StringBuilder key = new StringBuilder();
+		if(mCrop!=null)
+		{
+			key.append('c').append(mCrop.left).append(',').append(mCrop.top).append(',').append(mCrop.right).append(',').append(mCrop.bottom);
+		}
+		else if(mCropToSquare)
+		{
+			key.append('s');
+		}
+		key.append('r').append(mRotation);
+		key.append('m').append(mScaleMode).append(',').append(mTargetWidth).append(',').append(mTargetHeight);
+		if(mConfig!=null)
+		{
+			key.append(mConfig.name());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Draw the transformed image into one target bitmap
+	 *
+	 * @param source The bitmap being transformed, which may already have been sampled or cropped while decoding
+	 * @param sourceRect The part of source to keep
+	 * @param sourceScale The size of source compared to the full size image, e.g. 0.25 if it was decoded with inSampleSize 4
+	 * @param bitmapPool Where to get the target bitmap from, can be null
+	 */
+	Bitmap apply(Bitmap source, Rect sourceRect, float sourceScale, BitmapPool bitmapPool)
+	{
+		boolean sideways = mRotation==90 || mRotation==270;
+		float scaleX = getScaleX(sourceRect, sourceScale);
+		float scaleY = getScaleY(sourceRect, sourceScale);
+		if(mScaleMode!=SCALE_EXACT)
+		{
+			scaleX = scaleY = Math.min(scaleX, scaleY);
+		}
+		int rotatedWidth = sideways ? sourceRect.height() : sourceRect.width();
+		int rotatedHeight = sideways ? sourceRect.width() : sourceRect.height();
+		int width = Math.max(1, Math.round(rotatedWidth * scaleX));
+		int height = Math.max(1, Math.round(rotatedHeight * scaleY));
+		Bitmap.Config config = mConfig!=null ? mConfig : (source.getConfig()!=null ? source.getConfig() : Bitmap.Config.ARGB_8888);
+
+		if(mRotation==0 && width==source.getWidth() && height==source.getHeight() && config==source.getConfig()
+			&& sourceRect.left==0 && sourceRect.top==0 && sourceRect.width()==width && sourceRect.height()==height) //nothing to do
+		{
+			return source;
+		}
+
+		Matrix matrix = new Matrix();
+		matrix.setTranslate(-sourceRect.left, -sourceRect.top);
+		if(mRotation!=0)
+		{
+			matrix.postRotate(mRotation);
+			switch(mRotation) //move it back into view after rotating around the top left corner
+			{
+				case 90 :
+					matrix.postTranslate(sourceRect.height(), 0);
+					break;
+				case 180 :
+					matrix.postTranslate(sourceRect.width(), sourceRect.height());
+					break;
+				case 270 :
+					matrix.postTranslate(0, sourceRect.width());
+					break;
+			}
+		}
+		matrix.postScale((float) width / rotatedWidth, (float) height / rotatedHeight);
+
+		Bitmap target = bitmapPool!=null ? bitmapPool.getOrCreate(width, height, config) : Bitmap.createBitmap(width, height, config);
+		target.setDensity(source.getDensity());
+		if(bitmapPool!=null && source.hasAlpha()) //pooled bitmaps still have their old pixels
+		{
+			target.eraseColor(Color.TRANSPARENT);
+		}
+		Canvas canvas = new Canvas(target);
+		canvas.drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+		return target;
+	}
+
+	private float getScaleX(Rect sourceRect, float sourceScale)
+	{
+		boolean sideways = mRotation==90 || mRotation==270;
+		int rotatedWidth = sideways ? sourceRect.height() : sourceRect.width();
+		int rotatedHeight = sideways ? sourceRect.width() : sourceRect.height();
+		float scale;
+		switch(mScaleMode)
+		{
+			case SCALE_SHORTEST_SIDE :
+				scale = (float) mTargetWidth / Math.min(rotatedWidth, rotatedHeight);
+				break;
+			case SCALE_WIDTH :
+			case SCALE_EXACT :
+				scale = (float) mTargetWidth / rotatedWidth;
+				break;
+			case SCALE_FIT :
+				scale = Math.min((float) mTargetWidth / rotatedWidth, (float) mTargetHeight / rotatedHeight);
+				break;
+			case SCALE_FILL :
+				scale = Math.max((float) mTargetWidth / rotatedWidth, (float) mTargetHeight / rotatedHeight);
+				break;
+			default :
+				scale = 1f;
+				break;
+		}
+		return Math.min(scale, 1f / sourceScale); //never bigger than the full size image
+	}
+
+	private float getScaleY(Rect sourceRect, float sourceScale)
+	{
+		if(mScaleMode!=SCALE_EXACT)
+		{
+			return getScaleX(sourceRect, sourceScale);
+		}
+		boolean sideways = mRotation==90 || mRotation==270;
+		int rotatedHeight = sideways ? sourceRect.width() : sourceRect.height();
+		return Math.min((float) mTargetHeight / rotatedHeight, 1f / sourceScale);
+	}
+}
@@ -1,70 +1,993 @@
 package uk.co.jasonfry.android.tools.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.media.ExifInterface;
+import android.os.Build;
 import android.provider.MediaStore;
 
 public final class BitmapUtil 
 {
+	private static final int TEMP_STORAGE_SIZE = BitmapPool.TEMP_STORAGE_SIZE;
+	private static final int MARK_LIMIT = TEMP_STORAGE_SIZE; //no bigger than the buffer, so a long bounds pass rewinds with the channel rather than growing the buffer
+	private static final int JELLY_BEAN = 16;
+	private static final int KITKAT = 19;
+	private static final int MAX_QUERY_ARGUMENTS = 500; //SQLite allows 999 arguments in one statement
+	private static final int PREVIEW_SCALE = 8;
+	
+	private static BitmapCache sBitmapCache = null;
+	private static BitmapPool sBitmapPool = null;
+	private static BitmapBudget sBitmapBudget = null;
+	private static ThumbnailPackCache sDiskCache = null;
+	private static ImageMetadataIndex sMetadataIndex = null;
+	private static final HashMap<String, SharedDecode> sSharedDecodes = new HashMap<String, SharedDecode>();
+	private static final AtomicInteger sSharedDecodeCount = new AtomicInteger();
+	
+	/**
+	 * Set the memory cache that decodeFile and getThumbnail check before decoding, and put their results in
+	 * 
+	 * @param bitmapCache The cache to use, or null to stop caching
+	 */
+	public static void setBitmapCache(BitmapCache bitmapCache)
+	{
+		sBitmapCache = bitmapCache;
+	}
+	
+	/**
+	 * Get the memory cache that decodeFile and getThumbnail are using
+	 * 
+	 * @return The current BitmapCache, or null if there isn't one
+	 */
+	public static BitmapCache getBitmapCache()
+	{
+		return sBitmapCache;
+	}
+	
+	/**
+	 * Set the pool that decodeFile, cropToSquare and getThumbnail take bitmaps and scratch buffers from
+	 * instead of allocating new ones. Bitmaps go back into the pool through releaseBitmap.
+	 * 
+	 * @param bitmapPool The pool to use, or null to stop pooling
+	 */
+	public static void setBitmapPool(BitmapPool bitmapPool)
+	{
+		sBitmapPool = bitmapPool;
+	}
+	
+	/**
+	 * Get the pool that decodeFile, cropToSquare and getThumbnail are using
+	 * 
+	 * @return The current BitmapPool, or null if there isn't one
+	 */
+	public static BitmapPool getBitmapPool()
+	{
+		return sBitmapPool;
+	}
+	
+	/**
+	 * Set the disk cache that decodeFile and getThumbnail check after the memory cache, and write what 
+	 * they decode to. Only bitmaps up to the cache's maximum dimension are written.
+	 * 
+	 * @param diskCache The cache to use, or null to stop disk caching
+	 */
+	public static void setDiskCache(ThumbnailPackCache diskCache)
+	{
+		sDiskCache = diskCache;
+	}
+	
+	/**
+	 * Get the disk cache that decodeFile and getThumbnail are using
+	 * 
+	 * @return The current ThumbnailPackCache, or null if there isn't one
+	 */
+	public static ThumbnailPackCache getDiskCache()
+	{
+		return sDiskCache;
+	}
+	
+	/**
+	 * Set the index that decodeFile, createScaledImage and getThumbnail look up image sizes and EXIF 
+	 * orientations in, instead of reading them from the file. What they do read is added to it.
+	 * 
+	 * @param metadataIndex The index to use, or null to always read the file
+	 */
+	public static void setMetadataIndex(ImageMetadataIndex metadataIndex)
+	{
+		sMetadataIndex = metadataIndex;
+	}
+	
+	/**
+	 * Get the index that decodeFile, createScaledImage and getThumbnail are using
+	 * 
+	 * @return The current ImageMetadataIndex, or null if there isn't one
+	 */
+	public static ImageMetadataIndex getMetadataIndex()
+	{
+		return sMetadataIndex;
+	}
+	
+	/**
+	 * Set the budget that decoded bitmaps are counted against. Decodes that don't fit trim the cache and
+	 * pool, and are sampled down further if that isn't enough.
+	 * 
+	 * @param bitmapBudget The budget to use, or null to stop counting
+	 */
+	public static void setBitmapBudget(BitmapBudget bitmapBudget)
+	{
+		sBitmapBudget = bitmapBudget;
+	}
+	
+	/**
+	 * Get the budget that decoded bitmaps are being counted against
+	 * 
+	 * @return The current BitmapBudget, or null if there isn't one
+	 */
+	public static BitmapBudget getBitmapBudget()
+	{
+		return sBitmapBudget;
+	}
+	
+	/**
+	 * Give a bitmap back once nothing is drawing it any more, e.g. when a page is removed from a PageView. 
+	 * The bitmap is taken out of the BitmapCache and put in the BitmapPool to be decoded into again. 
+	 * Bear in mind that the cache, and decodes of the same file running at the same time, hand the same 
+	 * bitmap to everyone who asks for it, so only release it when none of them are using it.
+	 * 
+	 * @param bitmap The bitmap to give back
+	 */
+	public static void releaseBitmap(Bitmap bitmap)
+	{
+		if(bitmap==null)
+		{
+			return;
+		}
+		
+		BitmapCache bitmapCache = sBitmapCache;
+		if(bitmapCache!=null)
+		{
+			bitmapCache.removeBitmap(bitmap);
+		}
+		BitmapBudget bitmapBudget = sBitmapBudget;
+		if(bitmapBudget!=null)
+		{
+			bitmapBudget.untrack(bitmap);
+		}
+		BitmapPool bitmapPool = sBitmapPool;
+		if(bitmapPool!=null)
+		{
+			bitmapPool.put(bitmap);
+		}
+	}
+	
 	public static Bitmap decodeFile(String filepath, int size, boolean square)
 	{
-		return decodeFile(new File(filepath),size,square);
+		return decodeFile(new File(filepath),size,square);
+	}
+	
+	public static Bitmap decodeFile(File file, int size, boolean square)
+	{
+		return decodeFile(file, size, square, null);
+	}
+	
+	/**
+	 * Decode an image file so that its shortest side is at least size pixels. The header and the pixels
+	 * are both read through one buffered stream, so the file is only opened once.
+	 * 
+	 * @param file The image file to decode
+	 * @param size The size the shortest side should be
+	 * @param square Whether to crop the centre square out of the image
+	 * @param decodeOptions Options for the decode, which also get the cost of the decode written back to them. Can be null
+	 * @return The decoded bitmap, or null if the file couldn't be decoded
+	 */
+	public static Bitmap decodeFile(File file, int size, boolean square, DecodeOptions decodeOptions)
+	{
+		if(decodeOptions==null)
+		{
+			decodeOptions = new DecodeOptions();
+		}
+		decodeOptions.resetOutFields();
+		if(size<=0)
+		{
+			return null;
+		}
+		return decodeFileShared(BitmapCache.key(file, size, square, decodeOptions), file, size, square, null, decodeOptions);
+	}
+	
+	/**
+	 * Decode a file through the memory and disk caches. If another thread is already decoding the same key,
+	 * wait for it and share its bitmap rather than decoding the file again.
+	 */
+	private static Bitmap decodeFileShared(String key, File file, int size, boolean square, BitmapTransform transform, DecodeOptions decodeOptions)
+	{
+		BitmapCache bitmapCache = sBitmapCache;
+		Bitmap bitmap = bitmapCache!=null ? bitmapCache.get(key) : null;
+		if(bitmap!=null)
+		{
+			decodeOptions.outByteCount = BitmapCache.getBitmapSize(bitmap);
+			decodeOptions.outConfig = bitmap.getConfig();
+			return bitmap;
+		}
+		
+		SharedDecode sharedDecode;
+		boolean decoding = false;
+		synchronized(sSharedDecodes)
+		{
+			sharedDecode = sSharedDecodes.get(key);
+			if(sharedDecode==null)
+			{
+				sharedDecode = new SharedDecode();
+				sSharedDecodes.put(key, sharedDecode);
+				decoding = true;
+			}
+		}
+		if(!decoding)
+		{
+			sSharedDecodeCount.incrementAndGet();
+			return sharedDecode.await(decodeOptions);
+		}
+		
+		try
+		{
+			ThumbnailPackCache diskCache = sDiskCache;
+			bitmap = getFromDiskCache(diskCache, key, decodeOptions);
+			if(bitmap==null)
+			{
+				bitmap = transform!=null ? decodeFileUncached(file, transform, decodeOptions) : decodeFileUncached(file, size, square, decodeOptions);
+				if(decodeOptions.outBudgetSampleSize==1) //a decode shrunk to fit the budget would be served in place of the real one long after memory frees up
+				{
+					putInDiskCache(diskCache, key, bitmap);
+				}
+			}
+			decodeOptions.outConfig = bitmap!=null ? bitmap.getConfig() : null;
+			trackBitmap(bitmap);
+			if(bitmapCache!=null && decodeOptions.outBudgetSampleSize==1)
+			{
+				bitmapCache.put(key, bitmap);
+			}
+		}
+		finally
+		{
+			synchronized(sSharedDecodes)
+			{
+				sSharedDecodes.remove(key);
+			}
+			sharedDecode.finish(bitmap, decodeOptions);
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * @return The number of decodeFile calls that shared a decode already running on another thread, instead of decoding the file themselves
+	 */
+	public static int getSharedDecodeCount()
+	{
+		return sSharedDecodeCount.get();
+	}
+	
+	private static Bitmap decodeFileUncached(File file, int size, boolean square, DecodeOptions decodeOptions)
+	{
+		if(size<=0)
+		{
+			return null;
+		}
+		
+		BitmapPool bitmapPool = sBitmapPool;
+		FileInputStream fileStream = null;
+		BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+		bitmapOptions.inTempStorage = obtainTempStorage(bitmapPool);
+		try 
+		{
+			fileStream = new FileInputStream(file);
+			CountingInputStream countingStream = new CountingInputStream(fileStream);
+			InputStream stream = new BufferedInputStream(countingStream, TEMP_STORAGE_SIZE);
+			stream.mark(MARK_LIMIT);
+			
+			//decode image size, unless the index already knows it
+			decodeBounds(file, stream, bitmapOptions);
+			decodeOptions.outWidth = bitmapOptions.outWidth;
+			decodeOptions.outHeight = bitmapOptions.outHeight;
+			decodeOptions.outMimeType = bitmapOptions.outMimeType;
+			if(bitmapOptions.outWidth<=0 || bitmapOptions.outHeight<=0)
+			{
+				return null;
+			}
+			setPreferredConfig(bitmapOptions, decodeOptions);
+			
+			if(square)
+			{
+				//only decode the part we're keeping
+				Bitmap bitmap = decodeCentreSquare(fileStream, bitmapOptions, size, decodeOptions, bitmapPool);
+				if(bitmap!=null)
+				{
+					decodeOptions.outBytesRead = countingStream.getCount() + fileStream.getChannel().size(); //the region decoder reads the file itself
+					decodeOptions.outByteCount = BitmapCache.getBitmapSize(bitmap);
+					return bitmap;
+				}
+				
+				//the region decoder has moved the file on under the buffered stream, so start again from the channel
+				fileStream.getChannel().position(0);
+				stream = new BufferedInputStream(countingStream, TEMP_STORAGE_SIZE);
+			}
+			else
+			{
+				//go back to the start for the pixels, without opening the file again
+				stream = rewind(stream, fileStream, countingStream);
+			}
+			
+			int sampleSize = calculateSampleSize(bitmapOptions.outWidth, bitmapOptions.outHeight, size);
+			sampleSize = applyBudget(bitmapOptions.outWidth, bitmapOptions.outHeight, sampleSize, bitmapOptions.inPreferredConfig, decodeOptions);
+			bitmapOptions.inJustDecodeBounds = false;
+			bitmapOptions.inSampleSize = sampleSize;
+			if(decodeOptions.inExactSize)
+			{
+				setExactSizeScaling(bitmapOptions, sampleSize, size);
+			}
+			setReusableBitmap(bitmapOptions, bitmapPool);
+			Bitmap bitmap;
+			try
+			{
+				bitmap = BitmapFactory.decodeStream(stream, null, bitmapOptions);
+			}
+			catch(IllegalArgumentException e) //the decoder couldn't use the pooled bitmap, so decode into a new one
+			{
+				if(bitmapOptions.inBitmap==null)
+				{
+					throw e;
+				}
+				bitmapPool.put(bitmapOptions.inBitmap);
+				bitmapOptions.inBitmap = null;
+				stream = rewind(stream, fileStream, countingStream);
+				bitmap = BitmapFactory.decodeStream(stream, null, bitmapOptions);
+			}
+			decodeOptions.outSampleSize = sampleSize;
+			decodeOptions.outBytesRead = countingStream.getCount();
+			if(bitmap==null)
+			{
+				return null;
+			}
+			
+			if(decodeOptions.inExactSize)
+			{
+				//the density was only there to get the decoder to scale, the pixels should be drawn 1:1
+				bitmap.setDensity(Bitmap.DENSITY_NONE);
+			}
+			if(square)
+			{
+				bitmap = cropToSquare(bitmap, true);
+			}
+			decodeOptions.outByteCount = BitmapCache.getBitmapSize(bitmap);
+			return bitmap;
+		} 
+		catch (FileNotFoundException e) 
+		{
+			e.printStackTrace();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			closeQuietly(fileStream);
+			releaseTempStorage(bitmapPool, bitmapOptions.inTempStorage);
+		}
+		return null;
+	}
+	
+	/**
+	 * Decode just the centre square of an image with a BitmapRegionDecoder, so the parts that would be
+	 * cropped off are never decoded. 
+	 * 
+	 * @return The square, or null if the region decoder can't handle this file
+	 */
+	private static Bitmap decodeCentreSquare(FileInputStream fileStream, BitmapFactory.Options bitmapOptions, int size, DecodeOptions decodeOptions, BitmapPool bitmapPool) throws IOException
+	{
+		int width = bitmapOptions.outWidth;
+		int height = bitmapOptions.outHeight;
+		int side = Math.min(width, height);
+		int sampleSize = calculateSampleSize(side, side, size);
+		sampleSize = applyBudget(side, side, sampleSize, bitmapOptions.inPreferredConfig, decodeOptions);
+		int left = (width-side)/2;
+		int top = (height-side)/2;
+		
+		Bitmap bitmap = decodeRegion(fileStream, bitmapOptions, new Rect(left, top, left+side, top+side), sampleSize, bitmapPool);
+		decodeOptions.outSampleSize = sampleSize;
+		if(bitmap!=null && decodeOptions.inExactSize)
+		{
+			if(bitmap.getWidth()>size) //region decodes can't be density scaled, so the last step down is a draw
+			{
+				BitmapTransform transform = new BitmapTransform();
+				transform.setShortestSide(size);
+				bitmap = applyAndRelease(transform, bitmap, bitmapPool);
+			}
+			bitmap.setDensity(Bitmap.DENSITY_NONE);
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * Decode part of an image with a BitmapRegionDecoder
+	 * 
+	 * @return The decoded region, or null if the region decoder can't handle this file
+	 */
+	private static Bitmap decodeRegion(FileInputStream fileStream, BitmapFactory.Options bitmapOptions, Rect region, int sampleSize, BitmapPool bitmapPool) throws IOException
+	{
+		BitmapRegionDecoder regionDecoder;
+		try
+		{
+			fileStream.getChannel().position(0);
+			regionDecoder = BitmapRegionDecoder.newInstance(fileStream.getFD(), false);
+		}
+		catch(IOException e) //not a format the region decoder understands
+		{
+			return null;
+		}
+		
+		try
+		{
+			bitmapOptions.inJustDecodeBounds = false;
+			bitmapOptions.inSampleSize = sampleSize;
+			if(bitmapPool!=null && Build.VERSION.SDK_INT>=JELLY_BEAN) //the region decoder can't use inBitmap before jelly bean
+			{
+				int sampledWidth = (region.width() + sampleSize - 1) / sampleSize;
+				int sampledHeight = (region.height() + sampleSize - 1) / sampleSize;
+				Bitmap.Config config = bitmapOptions.inPreferredConfig!=null ? bitmapOptions.inPreferredConfig : Bitmap.Config.ARGB_8888;
+				bitmapOptions.inMutable = true;
+				bitmapOptions.inBitmap = bitmapPool.get(sampledWidth, sampledHeight, config);
+			}
+			
+			Bitmap bitmap;
+			try
+			{
+				bitmap = regionDecoder.decodeRegion(region, bitmapOptions);
+			}
+			catch(IllegalArgumentException e) //the decoder couldn't use the pooled bitmap, so decode into a new one
+			{
+				if(bitmapOptions.inBitmap==null)
+				{
+					throw e;
+				}
+				bitmapPool.put(bitmapOptions.inBitmap);
+				bitmapOptions.inBitmap = null;
+				bitmap = regionDecoder.decodeRegion(region, bitmapOptions);
+			}
+			bitmapOptions.inBitmap = null;
+			return bitmap;
+		}
+		finally
+		{
+			regionDecoder.recycle();
+		}
+	}
+	
+	/**
+	 * Decode an image file and crop, rotate and scale it as described by a BitmapTransform. Only the part
+	 * of the image being kept is decoded, at the largest sample size that still leaves enough pixels, 
+	 * and then everything else happens in one draw into one bitmap.
+	 * 
+	 * @param file The image file to decode
+	 * @param transform What to do to the image
+	 * @param decodeOptions Gets the cost of the decode written back to it. Can be null
+	 * @return The transformed bitmap, or null if the file couldn't be decoded
+	 */
+	public static Bitmap decodeFile(File file, BitmapTransform transform, DecodeOptions decodeOptions)
+	{
+		if(decodeOptions==null)
+		{
+			decodeOptions = new DecodeOptions();
+		}
+		decodeOptions.resetOutFields();
+		return decodeFileShared(BitmapCache.key(file, transform, decodeOptions), file, 0, false, transform, decodeOptions);
+	}
+	
+	private static Bitmap decodeFileUncached(File file, BitmapTransform transform, DecodeOptions decodeOptions)
+	{
+		BitmapPool bitmapPool = sBitmapPool;
+		FileInputStream fileStream = null;
+		BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+		bitmapOptions.inTempStorage = obtainTempStorage(bitmapPool);
+		try 
+		{
+			fileStream = new FileInputStream(file);
+			CountingInputStream countingStream = new CountingInputStream(fileStream);
+			InputStream stream = new BufferedInputStream(countingStream, TEMP_STORAGE_SIZE);
+			stream.mark(MARK_LIMIT);
+			
+			//decode image size, unless the index already knows it
+			decodeBounds(file, stream, bitmapOptions);
+			int width = bitmapOptions.outWidth;
+			int height = bitmapOptions.outHeight;
+			decodeOptions.outWidth = width;
+			decodeOptions.outHeight = height;
+			decodeOptions.outMimeType = bitmapOptions.outMimeType;
+			if(width<=0 || height<=0)
+			{
+				return null;
+			}
+			setPreferredConfig(bitmapOptions, decodeOptions);
+			
+			Rect sourceRect = transform.getSourceRect(width, height);
+			float scale = transform.getScale(sourceRect);
+			int sampleSize = 1;
+			while(sampleSize*2*scale<=1)
+			{
+				sampleSize *= 2;
+			}
+			sampleSize = applyBudget(sourceRect.width(), sourceRect.height(), sampleSize, bitmapOptions.inPreferredConfig, decodeOptions);
+			decodeOptions.outSampleSize = sampleSize;
+			
+			Bitmap decoded = null;
+			Rect decodedRect = null;
+			long regionBytesRead = 0;
+			if(sourceRect.width()<width || sourceRect.height()<height)
+			{
+				decoded = decodeRegion(fileStream, bitmapOptions, sourceRect, sampleSize, bitmapPool);
+				if(decoded!=null)
+				{
+					decodedRect = new Rect(0, 0, decoded.getWidth(), decoded.getHeight());
+					regionBytesRead = fileStream.getChannel().size(); //the region decoder reads the file itself
+				}
+				else //the region decoder has moved the file on under the buffered stream, so start again from the channel
+				{
+					fileStream.getChannel().position(0);
+					stream = new BufferedInputStream(countingStream, TEMP_STORAGE_SIZE);
+				}
+			}
+			else
+			{
+				stream = rewind(stream, fileStream, countingStream);
+			}
+			
+			if(decoded==null)
+			{
+				bitmapOptions.inJustDecodeBounds = false;
+				bitmapOptions.inSampleSize = sampleSize;
+				setReusableBitmap(bitmapOptions, bitmapPool);
+				try
+				{
+					decoded = BitmapFactory.decodeStream(stream, null, bitmapOptions);
+				}
+				catch(IllegalArgumentException e) //the decoder couldn't use the pooled bitmap, so decode into a new one
+				{
+					if(bitmapOptions.inBitmap==null)
+					{
+						throw e;
+					}
+					bitmapPool.put(bitmapOptions.inBitmap);
+					bitmapOptions.inBitmap = null;
+					stream = rewind(stream, fileStream, countingStream);
+					decoded = BitmapFactory.decodeStream(stream, null, bitmapOptions);
+				}
+				if(decoded==null)
+				{
+					return null;
+				}
+				float decodedScale = (float) decoded.getWidth() / width;
+				decodedRect = new Rect(Math.round(sourceRect.left * decodedScale), Math.round(sourceRect.top * decodedScale), 
+						Math.round(sourceRect.right * decodedScale), Math.round(sourceRect.bottom * decodedScale));
+				decodedRect.intersect(0, 0, decoded.getWidth(), decoded.getHeight());
+			}
+			decodeOptions.outBytesRead = countingStream.getCount() + regionBytesRead;
+			
+			Bitmap bitmap = transform.apply(decoded, decodedRect, 1f / sampleSize, bitmapPool);
+			if(bitmap!=decoded && bitmapPool!=null)
+			{
+				bitmapPool.put(decoded);
+			}
+			decodeOptions.outByteCount = BitmapCache.getBitmapSize(bitmap);
+			return bitmap;
+		} 
+		catch (FileNotFoundException e) 
+		{
+			e.printStackTrace();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			closeQuietly(fileStream);
+			releaseTempStorage(bitmapPool, bitmapOptions.inTempStorage);
+		}
+		return null;
+	}
+	
+	/**
+	 * Decode a coarse preview of an image very quickly, to show while decodeFile is working on the real thing.
+	 * The thumbnail embedded in a JPEG's EXIF is used if it is big enough, otherwise the image is decoded 
+	 * as RGB_565 at a sample size PREVIEW_SCALE times bigger than decodeFile would use. Previews aren't cached.
+	 * 
+	 * @param file The image file to decode
+	 * @param size The size that will be passed to decodeFile
+	 * @param square Whether to crop the centre square out of the image
+	 * @return The preview, or null if the file couldn't be decoded
+	 */
+	public static Bitmap decodePreview(File file, int size, boolean square)
+	{
+		int previewSize = Math.max(1, size / PREVIEW_SCALE);
+		Bitmap bitmap = decodeExifThumbnail(file, previewSize / 2);
+		if(bitmap!=null)
+		{
+			if(square)
+			{
+				bitmap = cropToSquare(bitmap, true);
+			}
+		}
+		else
+		{
+			DecodeOptions decodeOptions = new DecodeOptions();
+			decodeOptions.inPreferReducedConfig = true;
+			bitmap = decodeFileUncached(file, previewSize, square, decodeOptions);
+		}
+		trackBitmap(bitmap);
+		return bitmap;
+	}
+	
+	/**
+	 * @return The EXIF thumbnail, or null if there isn't one or its shortest side is less than minSize
+	 */
+	private static Bitmap decodeExifThumbnail(File file, int minSize)
+	{
+		byte[] thumbnail;
+		try
+		{
+			ExifInterface exifInterface = new ExifInterface(file.getAbsolutePath());
+			thumbnail = exifInterface.hasThumbnail() ? exifInterface.getThumbnail() : null;
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+		if(thumbnail==null)
+		{
+			return null;
+		}
+		
+		BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+		bitmapOptions.inPreferredConfig = Bitmap.Config.RGB_565; //EXIF thumbnails are always JPEGs
+		Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, bitmapOptions);
+		if(bitmap!=null && Math.min(bitmap.getWidth(), bitmap.getHeight())<minSize)
+		{
+			bitmap.recycle();
+			return null;
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * Apply a transform to a bitmap nothing else has, putting the original back into the pool if the 
+	 * transform made a new one
+	 */
+	private static Bitmap applyAndRelease(BitmapTransform transform, Bitmap bitmap, BitmapPool bitmapPool)
+	{
+		Bitmap transformed = transform.apply(bitmap, bitmapPool);
+		if(transformed!=bitmap && bitmapPool!=null)
+		{
+			bitmapPool.put(bitmap);
+		}
+		return transformed;
+	}
+	
+	/**
+	 * Fill in outWidth, outHeight and outMimeType from the ImageMetadataIndex, or with a bounds pass over the
+	 * stream if the index doesn't know the file. Either way the stream can be rewound to the start afterwards.
+	 */
+	private static void decodeBounds(File file, InputStream stream, BitmapFactory.Options bitmapOptions)
+	{
+		ImageMetadataIndex metadataIndex = sMetadataIndex;
+		ImageMetadataIndex.Metadata metadata = metadataIndex!=null ? metadataIndex.get(file) : null;
+		if(metadata!=null)
+		{
+			bitmapOptions.outWidth = metadata.getWidth();
+			bitmapOptions.outHeight = metadata.getHeight();
+			bitmapOptions.outMimeType = metadata.getMimeType();
+			return;
+		}
+		
+		bitmapOptions.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(stream, null, bitmapOptions);
+		bitmapOptions.inJustDecodeBounds = false;
+		if(metadataIndex!=null && bitmapOptions.outWidth>0 && bitmapOptions.outHeight>0)
+		{
+			metadataIndex.put(file, bitmapOptions.outWidth, bitmapOptions.outHeight, bitmapOptions.outMimeType);
+		}
+	}
+	
+	/**
+	 * Go back to the start of the file, using the mark if it's still valid, otherwise by moving the 
+	 * file's channel back to the start. Either way the file isn't opened again.
+	 */
+	private static InputStream rewind(InputStream stream, FileInputStream fileStream, InputStream countingStream) throws IOException
+	{
+		try
+		{
+			stream.reset();
+			return stream;
+		}
+		catch(IOException e) //read past the mark limit
+		{
+			fileStream.getChannel().position(0);
+			return new BufferedInputStream(countingStream, TEMP_STORAGE_SIZE);
+		}
+	}
+	
+	/**
+	 * Decode a bitmap from the disk cache, if there is one and it has the key. The bitmap isn't 
+	 * tracked by the BitmapBudget, the caller that hands it out does that.
+	 * 
+	 * @param decodeOptions Gets the cost of the decode written back to it, can be null
+	 */
+	private static Bitmap getFromDiskCache(ThumbnailPackCache diskCache, String key, DecodeOptions decodeOptions)
+	{
+		if(diskCache==null)
+		{
+			return null;
+		}
+		byte[] bytes = diskCache.getBytes(key);
+		if(bytes==null)
+		{
+			return null;
+		}
+		
+		BitmapPool bitmapPool = sBitmapPool;
+		BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+		bitmapOptions.inTempStorage = obtainTempStorage(bitmapPool);
+		bitmapOptions.inMutable = bitmapPool!=null; //so it can go back into the pool later
+		if(decodeOptions!=null && decodeOptions.inPreferReducedConfig && bytes.length>1 && bytes[0]==(byte) 0xFF && bytes[1]==(byte) 0xD8) //a JPEG, so no alpha
+		{
+			bitmapOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+		}
+		Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, bitmapOptions);
+		releaseTempStorage(bitmapPool, bitmapOptions.inTempStorage);
+		if(bitmap==null)
+		{
+			diskCache.remove(key);
+			return null;
+		}
+		
+		if(decodeOptions!=null)
+		{
+			if(decodeOptions.inExactSize)
+			{
+				bitmap.setDensity(Bitmap.DENSITY_NONE);
+			}
+			decodeOptions.outMimeType = bitmapOptions.outMimeType;
+			decodeOptions.outBytesRead = bytes.length;
+			decodeOptions.outByteCount = BitmapCache.getBitmapSize(bitmap);
+		}
+		return bitmap;
+	}
+	
+	private static void putInDiskCache(ThumbnailPackCache diskCache, String key, Bitmap bitmap)
+	{
+		if(diskCache!=null && bitmap!=null)
+		{
+			diskCache.put(key, bitmap);
+		}
 	}
 	
-	public static Bitmap decodeFile(File file, int size, boolean square)
+	/**
+	 * Check a decode fits in the BitmapBudget, if there is one
+	 * 
+	 * @return The sample size to decode with, which is bigger than sampleSize if the budget is nearly used up.
+	 * How much bigger is written to decodeOptions.outBudgetSampleSize.
+	 */
+	private static int applyBudget(int width, int height, int sampleSize, Bitmap.Config config, DecodeOptions decodeOptions)
 	{
-		try 
-        {
-            //decode image size
-            BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
-            bitmapOptions.inJustDecodeBounds = true;
-            Bitmap bitmapSize = BitmapFactory.decodeStream(new FileInputStream(file),null,bitmapOptions);
-            
-            //Find the correct scale value. It should be the power of 2.
-            if(size>0)
-            {
-	            int width_tmp=bitmapOptions.outWidth, height_tmp=bitmapOptions.outHeight;
-	            int scale = 1;
-	            while(true)
-	            {
-	                if(width_tmp/2<size || height_tmp/2<size)
-	                    break;
-	                width_tmp/=2;
-	                height_tmp/=2;
-	                scale++;
-	            }
-				//decode with inSampleSize
-	            bitmapOptions = new BitmapFactory.Options();
-	            bitmapOptions.inSampleSize=scale;
-				bitmapOptions.inScaled = true;
-				bitmapSize = null;
-				if(square)
-	            {
-	            	return cropToSquare(BitmapFactory.decodeFile(file.getAbsolutePath(), bitmapOptions));
-	            }
-	            return BitmapFactory.decodeFile(file.getAbsolutePath(), bitmapOptions);
-            }
-            return null;
-        } 
-        catch (FileNotFoundException e) 
-        {
-        	e.printStackTrace();
-        }
-        return null;
+		BitmapBudget bitmapBudget = sBitmapBudget;
+		if(bitmapBudget==null)
+		{
+			return sampleSize;
+		}
+		long byteCount = (long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize) 
+				* BitmapPool.getBytesPerPixel(config!=null ? config : Bitmap.Config.ARGB_8888);
+		decodeOptions.outBudgetSampleSize = bitmapBudget.getExtraSampleSize((int) Math.min(Integer.MAX_VALUE, byteCount));
+		return sampleSize * decodeOptions.outBudgetSampleSize;
+	}
+	
+	private static void trackBitmap(Bitmap bitmap)
+	{
+		BitmapBudget bitmapBudget = sBitmapBudget;
+		if(bitmapBudget!=null)
+		{
+			bitmapBudget.track(bitmap);
+		}
+	}
+	
+	/**
+	 * Decode opaque images as RGB_565 if the caller allows it. The bounds pass can't tell whether a PNG, 
+	 * GIF or WebP uses its alpha channel, so only JPEGs, which never have one, are reduced.
+	 */
+	private static void setPreferredConfig(BitmapFactory.Options bitmapOptions, DecodeOptions decodeOptions)
+	{
+		if(decodeOptions.inPreferReducedConfig && "image/jpeg".equals(bitmapOptions.outMimeType))
+		{
+			bitmapOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+		}
+	}
+	
+	/**
+	 * Find a bitmap in the pool for the decoder to decode into. Before KitKat the decoder can only reuse
+	 * a bitmap of exactly the same size as the image and that isn't being sampled or scaled, from 
+	 * KitKat onwards any bitmap that is big enough will do.
+	 */
+	private static void setReusableBitmap(BitmapFactory.Options bitmapOptions, BitmapPool bitmapPool)
+	{
+		if(bitmapPool==null)
+		{
+			return;
+		}
+		bitmapOptions.inMutable = true; //so the bitmap can go back into the pool later
+		
+		boolean scaled = bitmapOptions.inScaled && bitmapOptions.inDensity!=0 && bitmapOptions.inDensity!=bitmapOptions.inTargetDensity;
+		if(Build.VERSION.SDK_INT<KITKAT)
+		{
+			if(bitmapOptions.inSampleSize>1 || scaled 
+				|| !"image/jpeg".equals(bitmapOptions.outMimeType) && !"image/png".equals(bitmapOptions.outMimeType))
+			{
+				return;
+			}
+		}
+		
+		int sampleSize = Math.max(1, bitmapOptions.inSampleSize);
+		int width = (bitmapOptions.outWidth + sampleSize - 1) / sampleSize;
+		int height = (bitmapOptions.outHeight + sampleSize - 1) / sampleSize;
+		if(scaled)
+		{
+			float scale = (float) bitmapOptions.inTargetDensity / bitmapOptions.inDensity;
+			width = (int) (width * scale + 0.5f);
+			height = (int) (height * scale + 0.5f);
+		}
+		Bitmap.Config config = bitmapOptions.inPreferredConfig!=null ? bitmapOptions.inPreferredConfig : Bitmap.Config.ARGB_8888;
+		bitmapOptions.inBitmap = bitmapPool.get(width, height, config);
+	}
+	
+	private static byte[] obtainTempStorage(BitmapPool bitmapPool)
+	{
+		if(bitmapPool!=null)
+		{
+			return bitmapPool.obtainTempStorage();
+		}
+		return new byte[TEMP_STORAGE_SIZE];
+	}
+	
+	private static void releaseTempStorage(BitmapPool bitmapPool, byte[] tempStorage)
+	{
+		if(bitmapPool!=null)
+		{
+			bitmapPool.releaseTempStorage(tempStorage);
+		}
+	}
+	
+	/**
+	 * Find the largest power of 2 sample size that keeps both sides of the image at least size pixels
+	 */
+	static int calculateSampleSize(int width, int height, int size)
+	{
+		int sampleSize = 1;
+		while(width/(sampleSize*2)>=size && height/(sampleSize*2)>=size)
+		{
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+	
+	/**
+	 * Use density scaling to take the shortest side of a sampled image down to exactly size pixels, 
+	 * so no second scaled copy has to be made afterwards
+	 */
+	private static void setExactSizeScaling(BitmapFactory.Options bitmapOptions, int sampleSize, int size)
+	{
+		int sampledShortestSide = (Math.min(bitmapOptions.outWidth, bitmapOptions.outHeight) + sampleSize - 1) / sampleSize;
+		if(sampledShortestSide>size)
+		{
+			bitmapOptions.inScaled = true;
+			bitmapOptions.inDensity = sampledShortestSide;
+			bitmapOptions.inTargetDensity = size;
+		}
+	}
+	
+	static void closeQuietly(Closeable closeable)
+	{
+		if(closeable!=null)
+		{
+			try
+			{
+				closeable.close();
+			}
+			catch(IOException e){}
+		}
+	}
+	
+	/**
+	 * Counts the bytes that actually come out of the file
+	 */
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long mCount = 0;
+		
+		public CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+		
+		public long getCount()
+		{
+			return mCount;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			int result = super.read();
+			if(result!=-1)
+			{
+				mCount++;
+			}
+			return result;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException
+		{
+			int result = super.read(buffer, offset, count);
+			if(result>0)
+			{
+				mCount += result;
+			}
+			return result;
+		}
+		
+		@Override
+		public long skip(long count) throws IOException
+		{
+			long result = super.skip(count);
+			mCount += result;
+			return result;
+		}
 	}
 	
 	public static Bitmap cropToSquare(Bitmap bitmap)
 	{
+		return cropToSquare(bitmap, false);
+	}
+	
+	/**
+	 * @param releaseSource true if nothing else has the bitmap, so it can go back into the pool once cropped
+	 */
+	private static Bitmap cropToSquare(Bitmap bitmap, boolean releaseSource)
+	{
+		BitmapPool bitmapPool = sBitmapPool;
+		if(bitmap!=null && bitmapPool!=null && bitmap.getWidth()!=bitmap.getHeight())
+		{
+			//draw the centre into a pooled square rather than making a new bitmap
+			BitmapTransform transform = new BitmapTransform();
+			transform.setCropToSquare(true);
+			return releaseSource ? applyAndRelease(transform, bitmap, bitmapPool) : transform.apply(bitmap, bitmapPool);
+		}
+		
 		if(bitmap!=null)//make a square!
 	    {
 		    if(bitmap.getWidth()>bitmap.getHeight())
@@ -81,6 +1004,54 @@ public final class BitmapUtil
 	}
 	
 	public static Bitmap getThumbnail(ContentResolver contentResolver, long id)
+	{
+		BitmapCache bitmapCache = sBitmapCache;
+		ThumbnailPackCache diskCache = sDiskCache;
+		if(bitmapCache==null && diskCache==null)
+		{
+			return getThumbnailUncached(contentResolver, id);
+		}
+		
+		String key = BitmapCache.key(id);
+		Bitmap bitmap = bitmapCache!=null ? bitmapCache.get(key) : null;
+		if(bitmap==null)
+		{
+			bitmap = getFromDiskCache(diskCache, key, null);
+			if(bitmap==null)
+			{
+				bitmap = getThumbnailUncached(contentResolver, id);
+				putInDiskCache(diskCache, key, bitmap);
+			}
+			else
+			{
+				trackBitmap(bitmap);
+			}
+			if(bitmapCache!=null)
+			{
+				bitmapCache.put(key, bitmap);
+			}
+		}
+		return bitmap;
+	}
+	
+	private static Bitmap getThumbnailUncached(ContentResolver contentResolver, long id)
+	{
+		String filepath = getMediaFilePath(contentResolver, id);
+		if(filepath==null)
+		{
+			return null;
+		}
+		return loadThumbnail(contentResolver, id, getExifRotation(filepath));
+	}
+	
+	/**
+	 * Look up the file a MediaStore image is stored in
+	 * 
+	 * @param contentResolver The ContentResolver to query
+	 * @param id The MediaStore id of the image
+	 * @return The path of the file, or null if the image couldn't be found
+	 */
+	public static String getMediaFilePath(ContentResolver contentResolver, long id)
 	{
 		Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
 	             	new String[]{MediaStore.Images.Media.DATA}, // Which columns to return 
@@ -93,93 +1064,443 @@ public final class BitmapUtil
 			cursor.moveToFirst();
 			String filepath = cursor.getString(0);
 			cursor.close();
-			int rotation = 0;
+			return filepath;
+		}
+		else
+		{
+			if(cursor!=null)
+			{
+				cursor.close();
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the MINI_KIND thumbnails for many MediaStore images at once. The file paths and orientations
+	 * of all of them are looked up with one query (a few for very long lists) rather than one each, 
+	 * and the orientation comes from the MediaStore instead of parsing each file's EXIF. 
+	 * 
+	 * The callback is called on this thread as each thumbnail is ready, in whatever order the 
+	 * MediaStore returns them, and with a null bitmap for ids that couldn't be found.
+	 * 
+	 * @param contentResolver The ContentResolver to query
+	 * @param ids The MediaStore ids of the images
+	 * @param callback Given each thumbnail as it is ready
+	 * @return The number of thumbnails that were found
+	 */
+	public static int getThumbnails(ContentResolver contentResolver, long[] ids, ThumbnailCallback callback)
+	{
+		BitmapCache bitmapCache = sBitmapCache;
+		ThumbnailPackCache diskCache = sDiskCache;
+		int foundCount = 0;
+		
+		//anything in the caches doesn't need to go anywhere near the MediaStore
+		long[] uncachedIds = new long[ids.length];
+		int uncachedCount = 0;
+		for(int i=0; i<ids.length; i++)
+		{
+			String key = BitmapCache.key(ids[i]);
+			Bitmap bitmap = bitmapCache!=null ? bitmapCache.get(key) : null;
+			if(bitmap==null)
+			{
+				bitmap = getFromDiskCache(diskCache, key, null);
+				trackBitmap(bitmap);
+				if(bitmap!=null && bitmapCache!=null)
+				{
+					bitmapCache.put(key, bitmap);
+				}
+			}
+			if(bitmap!=null)
+			{
+				foundCount++;
+				callback.onThumbnailLoaded(ids[i], bitmap);
+			}
+			else
+			{
+				uncachedIds[uncachedCount++] = ids[i];
+			}
+		}
+		
+		for(int start=0; start<uncachedCount; start+=MAX_QUERY_ARGUMENTS)
+		{
+			int end = Math.min(uncachedCount, start+MAX_QUERY_ARGUMENTS);
+			StringBuilder selection = new StringBuilder(MediaStore.Images.Media._ID).append(" IN (");
+			String[] selectionArgs = new String[end-start];
+			HashSet<Long> missingIds = new HashSet<Long>();
+			for(int i=start; i<end; i++)
+			{
+				selection.append(i==start ? "?" : ",?");
+				selectionArgs[i-start] = String.valueOf(uncachedIds[i]);
+				missingIds.add(uncachedIds[i]);
+			}
+			selection.append(')');
 			
-			try
+			Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+					new String[]{MediaStore.Images.Media._ID, MediaStore.Images.Media.DATA, MediaStore.Images.Media.ORIENTATION},
+					selection.toString(),
+					selectionArgs,
+					null);
+			if(cursor!=null)
 			{
-				ExifInterface exifInterface = new ExifInterface(filepath);
-				int exifRotation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION,ExifInterface.ORIENTATION_UNDEFINED);
-
-				if(exifRotation!=ExifInterface.ORIENTATION_UNDEFINED)
+				try
 				{
-					switch(exifRotation)
+					while(cursor.moveToNext())
 					{
-						case ExifInterface.ORIENTATION_ROTATE_180 :
-							rotation = 180;
-							break;
-						case ExifInterface.ORIENTATION_ROTATE_270 :
-							rotation = 270;
-							break;
-						case ExifInterface.ORIENTATION_ROTATE_90 :
-							rotation = 90;
-							break;
+						long id = cursor.getLong(0);
+						if(!missingIds.remove(id)) //a duplicate id in the array we were given
+						{
+							continue;
+						}
+						
+						int rotation;
+						if(cursor.isNull(2)) //not scanned yet, so go to the file
+						{
+							rotation = getExifRotation(cursor.getString(1));
+						}
+						else
+						{
+							rotation = ((cursor.getInt(2) % 360) + 360) % 360;
+						}
+						
+						Bitmap bitmap = loadThumbnail(contentResolver, id, rotation);
+						if(bitmap!=null)
+						{
+							foundCount++;
+							putInDiskCache(diskCache, BitmapCache.key(id), bitmap);
+							if(bitmapCache!=null)
+							{
+								bitmapCache.put(BitmapCache.key(id), bitmap);
+							}
+						}
+						callback.onThumbnailLoaded(id, bitmap);
 					}
 				}
+				finally
+				{
+					cursor.close();
+				}
 			}
-			catch(IOException e){}
 			
-			Bitmap bitmap = MediaStore.Images.Thumbnails.getThumbnail(contentResolver, id, MediaStore.Images.Thumbnails.MINI_KIND, null);
-			
-			if(rotation!=0)
+			for(Long id : missingIds)
 			{
-				Matrix matrix = new Matrix();
-				matrix.setRotate(rotation);
-				bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+				callback.onThumbnailLoaded(id, null);
 			}
-			
-			return bitmap;
 		}
-		else
+		return foundCount;
+	}
+	
+	/**
+	 * Implement this to be given thumbnails by getThumbnails
+	 */
+	public interface ThumbnailCallback
+	{
+		/**
+		 * @param id The MediaStore id of the image
+		 * @param bitmap The thumbnail, rotated the right way up, or null if the image couldn't be found
+		 */
+		public abstract void onThumbnailLoaded(long id, Bitmap bitmap);
+	}
+	
+	/**
+	 * Find the rotation an image should be displayed at, from the ImageMetadataIndex if it knows, 
+	 * otherwise from the file's EXIF orientation
+	 * 
+	 * @param filepath The image file
+	 * @return 0, 90, 180 or 270
+	 */
+	public static int getExifRotation(String filepath)
+	{
+		ImageMetadataIndex metadataIndex = sMetadataIndex;
+		if(filepath==null || metadataIndex==null)
 		{
-			return null;
+			return readExifRotation(filepath);
 		}
+		ImageMetadataIndex.Metadata metadata = metadataIndex.getOrRead(new File(filepath));
+		return metadata!=null && metadata.getRotation()!=ImageMetadataIndex.ROTATION_UNKNOWN ? metadata.getRotation() : readExifRotation(filepath);
 	}
 	
-	public static void createScaledImage(String sourceFile, String destinationFile, int desiredWidth, int desiredHeight)
+	/**
+	 * Read the rotation an image should be displayed at from its EXIF orientation, without parsing the rest of the EXIF
+	 * 
+	 * @param filepath The image file
+	 * @return 0, 90, 180 or 270
+	 */
+	static int readExifRotation(String filepath)
 	{
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile(sourceFile, options);
-
-		int srcWidth = options.outWidth;
-		int srcHeight = options.outHeight;
-
-		if(desiredWidth > srcWidth)
+		if(filepath==null)
 		{
-			desiredWidth = srcWidth;
+			return 0;
 		}
-
-		int inSampleSize = 1;
-		while(srcWidth / 2 > desiredWidth)
+		return ExifOrientationReader.getRotation(ExifOrientationReader.readOrientation(new File(filepath)));
+	}
+	
+	/**
+	 * Fetch the MINI_KIND thumbnail for an image and turn it the right way up
+	 */
+	private static Bitmap loadThumbnail(ContentResolver contentResolver, long id, int rotation)
+	{
+		BitmapPool bitmapPool = sBitmapPool;
+		BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+		bitmapOptions.inTempStorage = obtainTempStorage(bitmapPool);
+		bitmapOptions.inMutable = bitmapPool!=null;
+		Bitmap bitmap = MediaStore.Images.Thumbnails.getThumbnail(contentResolver, id, MediaStore.Images.Thumbnails.MINI_KIND, bitmapOptions);
+		releaseTempStorage(bitmapPool, bitmapOptions.inTempStorage);
+		
+		if(rotation!=0 && bitmap!=null)
 		{
-		    srcWidth /= 2;
-		    srcHeight /= 2;
-		    inSampleSize *= 2;
+			BitmapTransform transform = new BitmapTransform();
+			transform.setRotation(rotation);
+			bitmap = applyAndRelease(transform, bitmap, bitmapPool);
 		}
-
-		float desiredScale = (float) desiredWidth / srcWidth;
-
-		options.inJustDecodeBounds = false;
-		options.inDither = false;
-		options.inSampleSize = inSampleSize;
-		options.inScaled = false;
-		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-		Bitmap sampledSrcBitmap = BitmapFactory.decodeFile(sourceFile, options);
-
-		Matrix matrix = new Matrix();
-		matrix.postScale(desiredScale, desiredScale);
-		Bitmap scaledBitmap = Bitmap.createBitmap(sampledSrcBitmap, 0, 0, sampledSrcBitmap.getWidth(), sampledSrcBitmap.getHeight(), matrix, true);
-		sampledSrcBitmap = null;
-
+		
+		trackBitmap(bitmap);
+		return bitmap;
+	}
+	
+	public static void createScaledImage(String sourceFile, String destinationFile, int desiredWidth, int desiredHeight)
+	{
+		createScaledImage(sourceFile, destinationFile, desiredWidth, desiredHeight, null);
+	}
+	
+	/**
+	 * Write a scaled copy of an image file in the format and quality given by encodeOptions
+	 * 
+	 * @param encodeOptions How to write the copy, which also get the bytes written back to them. Null writes a JPEG at quality 85
+	 */
+	public static void createScaledImage(String sourceFile, String destinationFile, int desiredWidth, int desiredHeight, EncodeOptions encodeOptions)
+	{
 		try
 		{
-			FileOutputStream out = new FileOutputStream(destinationFile);
-			scaledBitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
-			scaledBitmap = null;
+			createScaledImage(new File(sourceFile), new File(destinationFile), desiredWidth, desiredHeight, encodeOptions, sBitmapPool);
 		}
 		catch(IOException e)
 		{
 			e.printStackTrace();
 		}
 	}
+	
+	static void createScaledImage(File sourceFile, File destinationFile, int desiredWidth, int desiredHeight, BitmapPool bitmapPool) throws IOException
+	{
+		createScaledImage(sourceFile, destinationFile, desiredWidth, desiredHeight, null, bitmapPool);
+	}
+	
+	/**
+	 * Write a scaled copy of an image file. The source is opened once and both streams are always closed.
+	 * The copy is written next to the destination and renamed over it once it is complete, so a process
+	 * killed part way through never leaves a truncated destination file behind.
+	 * 
+	 * @param encodeOptions How to write the copy, can be null
+	 * @param bitmapPool Where the sampled and scaled bitmaps come from and go back to, can be null
+	 * @throws IOException If the source can't be read or decoded, or the destination can't be written
+	 */
+	static void createScaledImage(File sourceFile, File destinationFile, int desiredWidth, int desiredHeight, EncodeOptions encodeOptions, BitmapPool bitmapPool) throws IOException
+	{
+		if(encodeOptions==null)
+		{
+			encodeOptions = new EncodeOptions();
+		}
+		encodeOptions.resetOutFields();
+
+		FileInputStream fileStream = null;
+		OutputStream out = null;
+		File tempFile = new File(destinationFile.getPath()+".tmp");
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inTempStorage = obtainTempStorage(bitmapPool);
+		Bitmap sampledSrcBitmap = null;
+		Bitmap scaledBitmap = null;
+		try
+		{
+			fileStream = new FileInputStream(sourceFile);
+			InputStream stream = new BufferedInputStream(fileStream, TEMP_STORAGE_SIZE);
+			stream.mark(MARK_LIMIT);
+			decodeBounds(sourceFile, stream, options);
+			
+			int srcWidth = options.outWidth;
+			int srcHeight = options.outHeight;
+			if(srcWidth<=0 || srcHeight<=0)
+			{
+				throw new IOException("Could not decode "+sourceFile);
+			}
+			
+			if(desiredWidth > srcWidth)
+			{
+				desiredWidth = srcWidth;
+			}
+			
+			int inSampleSize = 1;
+			while(srcWidth / 2 > desiredWidth)
+			{
+			    srcWidth /= 2;
+			    srcHeight /= 2;
+			    inSampleSize *= 2;
+			}
+			
+			stream = rewind(stream, fileStream, fileStream);
+			options.inJustDecodeBounds = false;
+			options.inDither = false;
+			options.inSampleSize = inSampleSize;
+			options.inScaled = false;
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			setReusableBitmap(options, bitmapPool);
+			try
+			{
+				sampledSrcBitmap = BitmapFactory.decodeStream(stream, null, options);
+			}
+			catch(IllegalArgumentException e) //the decoder couldn't use the pooled bitmap, so decode into a new one
+			{
+				if(options.inBitmap==null)
+				{
+					throw e;
+				}
+				bitmapPool.put(options.inBitmap);
+				options.inBitmap = null;
+				stream = rewind(stream, fileStream, fileStream);
+				sampledSrcBitmap = BitmapFactory.decodeStream(stream, null, options);
+			}
+			closeQuietly(fileStream);
+			fileStream = null;
+			if(sampledSrcBitmap==null)
+			{
+				throw new IOException("Could not decode "+sourceFile);
+			}
+			
+			BitmapTransform transform = new BitmapTransform();
+			transform.setTargetWidth(desiredWidth);
+			scaledBitmap = transform.apply(sampledSrcBitmap, new Rect(0, 0, sampledSrcBitmap.getWidth(), sampledSrcBitmap.getHeight()), 1f / inSampleSize, bitmapPool);
+			if(scaledBitmap==sampledSrcBitmap) //already the right size
+			{
+				sampledSrcBitmap = null;
+			}
+			
+			if(encodeOptions.inTargetBytes>0 && encodeOptions.inFormat!=Bitmap.CompressFormat.PNG)
+			{
+				//find the quality in memory, so the file is only written once
+				ByteArrayOutputStream encoded = encodeToTarget(scaledBitmap, encodeOptions);
+				out = new FileOutputStream(tempFile);
+				encoded.writeTo(out);
+			}
+			else
+			{
+				out = new BufferedOutputStream(new FileOutputStream(tempFile), TEMP_STORAGE_SIZE);
+				if(!scaledBitmap.compress(encodeOptions.inFormat, encodeOptions.inQuality, out))
+				{
+					throw new IOException("Could not compress "+sourceFile);
+				}
+				encodeOptions.outQuality = encodeOptions.inQuality;
+			}
+			out.close();
+			out = null;
+			if(!tempFile.renameTo(destinationFile))
+			{
+				throw new IOException("Could not rename "+tempFile+" to "+destinationFile);
+			}
+			encodeOptions.outBytesWritten = destinationFile.length();
+		}
+		finally
+		{
+			closeQuietly(fileStream);
+			closeQuietly(out);
+			tempFile.delete(); //only still there if something went wrong
+			releaseTempStorage(bitmapPool, options.inTempStorage);
+			if(bitmapPool!=null)
+			{
+				bitmapPool.put(sampledSrcBitmap);
+				bitmapPool.put(scaledBitmap);
+			}
+		}
+	}
+	
+	/**
+	 * Binary search for the highest quality whose encoding fits in encodeOptions.inTargetBytes
+	 * 
+	 * @return The encoding to write
+	 */
+	private static ByteArrayOutputStream encodeToTarget(Bitmap bitmap, EncodeOptions encodeOptions) throws IOException
+	{
+		int low = Math.max(0, Math.min(encodeOptions.inMinQuality, encodeOptions.inQuality));
+		int high = Math.min(100, encodeOptions.inQuality);
+		ByteArrayOutputStream best = new ByteArrayOutputStream(encodeOptions.inTargetBytes);
+		ByteArrayOutputStream attempt = new ByteArrayOutputStream(encodeOptions.inTargetBytes);
+		
+		//most images fit at the highest quality, so try that first
+		encode(bitmap, encodeOptions, high, best);
+		int bestQuality = high;
+		if(best.size()>encodeOptions.inTargetBytes)
+		{
+			//the lowest quality is the fallback if nothing fits
+			encode(bitmap, encodeOptions, low, best);
+			bestQuality = low;
+			if(best.size()<=encodeOptions.inTargetBytes)
+			{
+				low++;
+				high--;
+				while(low<=high)
+				{
+					int quality = (low + high) >>> 1;
+					encode(bitmap, encodeOptions, quality, attempt);
+					if(attempt.size()<=encodeOptions.inTargetBytes)
+					{
+						ByteArrayOutputStream swap = best;
+						best = attempt;
+						attempt = swap;
+						bestQuality = quality;
+						low = quality + 1;
+					}
+					else
+					{
+						high = quality - 1;
+					}
+				}
+			}
+		}
+		encodeOptions.outQuality = bestQuality;
+		return best;
+	}
+	
+	private static void encode(Bitmap bitmap, EncodeOptions encodeOptions, int quality, ByteArrayOutputStream out) throws IOException
+	{
+		out.reset();
+		encodeOptions.outEncodeCount++;
+		if(!bitmap.compress(encodeOptions.inFormat, quality, out))
+		{
+			throw new IOException("Could not compress at quality "+quality);
+		}
+	}
+	
+	/**
+	 * A decode that other threads asking for the same key can wait for
+	 */
+	private static class SharedDecode
+	{
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private final DecodeOptions mOutFields = new DecodeOptions();
+		private Bitmap mBitmap;
+		
+		/**
+		 * The out fields are copied now, the caller is free to reuse its DecodeOptions once this returns
+		 */
+		public void finish(Bitmap bitmap, DecodeOptions decodeOptions)
+		{
+			mBitmap = bitmap;
+			mOutFields.copyOutFields(decodeOptions);
+			mDone.countDown();
+		}
+		
+		public Bitmap await(DecodeOptions decodeOptions)
+		{
+			try
+			{
+				mDone.await();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			decodeOptions.copyOutFields(mOutFields);
+			decodeOptions.outBytesRead = 0; //this caller didn't read anything
+			return mBitmap;
+		}
+	}
 }
@@ -0,0 +1,109 @@
+package uk.co.jasonfry.android.tools.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * Options for BitmapUtil.decodeFile, in the same spirit as BitmapFactory.Options. The in fields
+ * are set by the caller to choose how the file is decoded, the out fields are filled in by the
+ * decode so the caller can see what it cost.
+ */
+public class DecodeOptions
+{
+	/**
+	 * If true the decoded bitmap's shortest side is exactly the requested size. The sample size is
+	 * a power of two that keeps the image at least that big, and the rest of the way is made up by
+	 * density scaling while decoding. If false (the default) the shortest side is somewhere between
+	 * size and twice size, which is what decodeFile has always done.
+	 */
+	public boolean inExactSize = false;
+
+	/**
+	 * If true, images that can't have any transparency (JPEGs) are decoded as RGB_565, which uses half
+	 * the memory of ARGB_8888 at the cost of some colour depth. Images that might have an alpha channel
+	 * are still decoded with the default config. The config that was used is reported in outConfig.
+	 */
+	public boolean inPreferReducedConfig = false;
+
+	/**
+	 * The width of the image file, before any sampling or scaling
+	 */
+	public int outWidth;
+
+	/**
+	 * The height of the image file, before any sampling or scaling
+	 */
+	public int outHeight;
+
+	/**
+	 * The mime type of the image file, or null if it couldn't be decoded
+	 */
+	public String outMimeType;
+
+	/**
+	 * The inSampleSize the pixels were decoded with
+	 */
+	public int outSampleSize;
+
+	/**
+	 * The number of bytes read from the file, including the bounds pass, or from the disk cache. 
+	 * When the bitmap came from the disk cache outWidth, outHeight and outSampleSize are left at 0.
+	 */
+	public long outBytesRead;
+
+	/**
+	 * The number of bytes used by the pixels of the returned bitmap
+	 */
+	public int outByteCount;
+
+	/**
+	 * The config of the returned bitmap, or null if the file couldn't be decoded
+	 */
+	public Bitmap.Config outConfig;
+
+	/**
+	 * How many times smaller than asked for the BitmapBudget made the decode, 1 if it didn't.
+	 * Decodes made smaller by the budget aren't put in the memory or disk cache.
+	 */
+	public int outBudgetSampleSize = 1;
+
+	public DecodeOptions()
+	{
+	}
+
+	public DecodeOptions(boolean exactSize)
+	{
+		inExactSize = exactSize;
+	}
+
+	/**
+	 * @return A short string describing the in fields, used to keep differently decoded copies of the same file apart in a BitmapCache
+	 */
+	String getKeyFlags()
+	{
+		return (inExactSize ? "e" : "") + (inPreferReducedConfig ? "r" : "");
+	}
+
+	void copyOutFields(DecodeOptions decodeOptions)
+	{
+		outWidth = decodeOptions.outWidth;
+		outHeight = decodeOptions.outHeight;
+		outMimeType = decodeOptions.outMimeType;
+		outSampleSize = decodeOptions.outSampleSize;
+		outBytesRead = decodeOptions.outBytesRead;
+		outByteCount = decodeOptions.outByteCount;
+		outConfig = decodeOptions.outConfig;
+		outBudgetSampleSize = decodeOptions.outBudgetSampleSize;
+	}
+
+	void resetOutFields()
+	{
+		outWidth = 0;
+		outHeight = 0;
+		outMimeType = null;
+		outSampleSize = 0;
+		outBytesRead = 0;
+		outByteCount = 0;
+		outConfig = null;
+		outBudgetSampleSize = 1;
+	}
+}
@@ -0,0 +1,111 @@
+package uk.co.jasonfry.android.tools.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * Options for how BitmapUtil.createScaledImage writes its output, in the same spirit as DecodeOptions.
+ * The in fields choose the format and quality, the out fields say what was actually written.
+ */
+public class EncodeOptions
+{
+	/**
+	 * Bitmap.CompressFormat.WEBP, or null on devices before ice cream sandwich that can't write WebP
+	 */
+	public static final Bitmap.CompressFormat WEBP = findFormat("WEBP");
+
+	public static final int DEFAULT_QUALITY = 85;
+	public static final int DEFAULT_MIN_QUALITY = 40;
+
+	/**
+	 * The format to write, JPEG by default. Use WEBP for WebP where it is supported.
+	 */
+	public Bitmap.CompressFormat inFormat = Bitmap.CompressFormat.JPEG;
+
+	/**
+	 * The quality to write at, 0-100. With inTargetBytes this is the highest quality tried.
+	 */
+	public int inQuality = DEFAULT_QUALITY;
+
+	/**
+	 * If more than 0, the highest quality between inMinQuality and inQuality that fits in this many
+	 * bytes is found by encoding in memory, and only that encoding is written. If even inMinQuality
+	 * doesn't fit, it is written anyway. Ignored for PNG, which has no quality setting.
+	 */
+	public int inTargetBytes = 0;
+
+	/**
+	 * The lowest quality inTargetBytes will go down to
+	 */
+	public int inMinQuality = DEFAULT_MIN_QUALITY;
+
+	/**
+	 * The number of bytes written to the file
+	 */
+	public long outBytesWritten;
+
+	/**
+	 * The quality that was written
+	 */
+	public int outQuality;
+
+	/**
+	 * The number of in memory encodes tried to meet inTargetBytes, 0 if there was no target
+	 */
+	public int outEncodeCount;
+
+	public EncodeOptions()
+	{
+	}
+
+	public EncodeOptions(Bitmap.CompressFormat format, int quality)
+	{
+		inFormat = format;
+		inQuality = quality;
+	}
+
+	/**
+	 * Copy the in fields of another EncodeOptions, e.g. to give each thread of a batch its own out fields
+	 */
+	public EncodeOptions(EncodeOptions encodeOptions)
+	{
+		inFormat = encodeOptions.inFormat;
+		inQuality = encodeOptions.inQuality;
+		inTargetBytes = encodeOptions.inTargetBytes;
+		inMinQuality = encodeOptions.inMinQuality;
+	}
+
+	/**
+	 * @return The file extension for inFormat, without the dot
+	 */
+	public String getExtension()
+	{
+		if(inFormat==Bitmap.CompressFormat.PNG)
+		{
+			return "png";
+		}
+		else if(inFormat!=null && inFormat==WEBP)
+		{
+			return "webp";
+		}
+		return "jpg";
+	}
+
+	void resetOutFields()
+	{
+		outBytesWritten = 0;
+		outQuality = 0;
+		outEncodeCount = 0;
+	}
+
+	private static Bitmap.CompressFormat findFormat(String name)
+	{
+		try
+		{
+			return Bitmap.CompressFormat.valueOf(name);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads just the orientation tag out of a JPEG's EXIF. The file is walked segment by segment up to the
+ * APP1 segment, and then only as far as the orientation entry in the first IFD, a few bytes at a time.
+ * Nothing else in the EXIF is parsed, and it gives up once it has read MAX_SCAN_BYTES.
+ *
+ * It is plain Java, so it can be run on the JVM as well as on a device.
+ */
+public final class ExifOrientationReader
+{
+	public static final int ORIENTATION_UNDEFINED = 0;
+	public static final int ORIENTATION_NORMAL = 1;
+	public static final int ORIENTATION_ROTATE_180 = 3;
+	public static final int ORIENTATION_ROTATE_90 = 6;
+	public static final int ORIENTATION_ROTATE_270 = 8;
+
+	public static final int MAX_SCAN_BYTES = 128*1024;
+
+	private static final int BUFFER_SIZE = 512;
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_APP1 = 0xE1;
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TYPE_SHORT = 3;
+	private static final int ENTRY_SIZE = 12;
+
+	private final InputStream mStream;
+	private final byte[] mBuffer = new byte[ENTRY_SIZE];
+	private final int mLimit;
+	private int mPosition = 0;
+	private boolean mLittleEndian = false;
+
+	private ExifOrientationReader(InputStream stream, int limit)
+	{
+		mStream = stream;
+		mLimit = limit;
+	}
+
+	/**
+	 * Read the EXIF orientation of a JPEG file
+	 *
+	 * @param file The file
+	 * @return The orientation, e.g. ORIENTATION_ROTATE_90, or ORIENTATION_UNDEFINED if there isn't one or the file isn't a JPEG
+	 */
+	public static int readOrientation(File file)
+	{
+		InputStream stream = null;
+		try
+		{
+			stream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			return readOrientation(stream);
+		}
+		catch(IOException e)
+		{
+			return ORIENTATION_UNDEFINED;
+		}
+		finally
+		{
+			if(stream!=null)
+			{
+				try
+				{
+					stream.close();
+				}
+				catch(IOException e){}
+			}
+		}
+	}
+
+	/**
+	 * Read the EXIF orientation from the start of a JPEG stream. The stream is left part way through.
+	 *
+	 * @param stream The stream, which should be buffered
+	 * @return The orientation, or ORIENTATION_UNDEFINED if there isn't one within MAX_SCAN_BYTES
+	 * @throws IOException If the stream can't be read
+	 */
+	public static int readOrientation(InputStream stream) throws IOException
+	{
+		return readOrientation(stream, MAX_SCAN_BYTES);
+	}
+
+	/**
+	 * Read the EXIF orientation from the start of a JPEG stream, reading no more than limit bytes
+	 *
+	 * @param stream The stream, which should be buffered
+	 * @param limit The most bytes to read or skip before giving up
+	 * @return The orientation, or ORIENTATION_UNDEFINED if there isn't one within limit bytes
+	 * @throws IOException If the stream can't be read
+	 */
+	public static int readOrientation(InputStream stream, int limit) throws IOException
+	{
+		try
+		{
+			return new ExifOrientationReader(stream, limit).read();
+		}
+		catch(EOFException e) //truncated, or ran into the limit
+		{
+			return ORIENTATION_UNDEFINED;
+		}
+	}
+
+	/**
+	 * @param orientation An EXIF orientation
+	 * @return The clockwise rotation it needs to be displayed at, 0, 90, 180 or 270. Mirrored orientations are treated as not rotated.
+	 */
+	public static int getRotation(int orientation)
+	{
+		switch(orientation)
+		{
+			case ORIENTATION_ROTATE_90 :
+				return 90;
+			case ORIENTATION_ROTATE_180 :
+				return 180;
+			case ORIENTATION_ROTATE_270 :
+				return 270;
+			default :
+				return 0;
+		}
+	}
+
+	private int read() throws IOException
+	{
+		readFully(2);
+		if((mBuffer[0] & 0xFF)!=0xFF || (mBuffer[1] & 0xFF)!=MARKER_SOI)
+		{
+			return ORIENTATION_UNDEFINED; //not a JPEG
+		}
+
+		while(true)
+		{
+			int marker = readMarker();
+			if(marker==MARKER_SOS || marker==MARKER_EOI || marker<0)
+			{
+				return ORIENTATION_UNDEFINED; //into the image data without finding any EXIF
+			}
+			readFully(2);
+			int length = readUnsignedShortBigEndian(0) - 2;
+			if(length<0)
+			{
+				return ORIENTATION_UNDEFINED;
+			}
+			if(marker==MARKER_APP1 && length>=6)
+			{
+				readFully(6);
+				length -= 6;
+				if(mBuffer[0]=='E' && mBuffer[1]=='x' && mBuffer[2]=='i' && mBuffer[3]=='f' && mBuffer[4]==0 && mBuffer[5]==0)
+				{
+					return readTiff(length);
+				}
+			}
+			skip(length);
+		}
+	}
+
+	/**
+	 * @return The next marker, skipping any fill bytes, or -1 if the stream isn't at a marker
+	 */
+	private int readMarker() throws IOException
+	{
+		readFully(1);
+		if((mBuffer[0] & 0xFF)!=0xFF)
+		{
+			return -1;
+		}
+		int marker;
+		do
+		{
+			readFully(1);
+			marker = mBuffer[0] & 0xFF;
+		}
+		while(marker==0xFF);
+		return marker;
+	}
+
+	/**
+	 * Find the orientation entry in IFD0 of the TIFF structure at the current position
+	 *
+	 * @param length The number of bytes in the TIFF structure
+	 */
+	private int readTiff(int length) throws IOException
+	{
+		int start = mPosition;
+		readFully(8);
+		if(mBuffer[0]=='I' && mBuffer[1]=='I')
+		{
+			mLittleEndian = true;
+		}
+		else if(mBuffer[0]=='M' && mBuffer[1]=='M')
+		{
+			mLittleEndian = false;
+		}
+		else
+		{
+			return ORIENTATION_UNDEFINED;
+		}
+		if(readUnsignedShort(2)!=42)
+		{
+			return ORIENTATION_UNDEFINED;
+		}
+		long ifdOffset = readUnsignedInt(4);
+		if(ifdOffset<8 || ifdOffset+2>length)
+		{
+			return ORIENTATION_UNDEFINED;
+		}
+		skip((int) ifdOffset - (mPosition - start)); //IFD0 is always after the header, so this only goes forward
+
+		readFully(2);
+		int entryCount = readUnsignedShort(0);
+		for(int i=0; i<entryCount && mPosition-start+ENTRY_SIZE<=length; i++)
+		{
+			readFully(ENTRY_SIZE);
+			if(readUnsignedShort(0)==TAG_ORIENTATION)
+			{
+				if(readUnsignedShort(2)!=TYPE_SHORT)
+				{
+					return ORIENTATION_UNDEFINED;
+				}
+				int orientation = readUnsignedShort(8);
+				return orientation>=1 && orientation<=8 ? orientation : ORIENTATION_UNDEFINED;
+			}
+		}
+		return ORIENTATION_UNDEFINED;
+	}
+
+	private void readFully(int count) throws IOException
+	{
+		checkLimit(count);
+		int offset = 0;
+		while(offset<count)
+		{
+			int read = mStream.read(mBuffer, offset, count - offset);
+			if(read<0)
+			{
+				throw new EOFException();
+			}
+			offset += read;
+		}
+		mPosition += count;
+	}
+
+	private void skip(int count) throws IOException
+	{
+		checkLimit(count);
+		int remaining = count;
+		while(remaining>0)
+		{
+			long skipped = mStream.skip(remaining);
+			if(skipped<=0)
+			{
+				if(mStream.read()<0) //skip can return 0 without being at the end, read tells us which
+				{
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+		mPosition += count;
+	}
+
+	private void checkLimit(int count) throws EOFException
+	{
+		if(mPosition+count>mLimit)
+		{
+			throw new EOFException();
+		}
+	}
+
+	private int readUnsignedShortBigEndian(int offset)
+	{
+		return ((mBuffer[offset] & 0xFF) << 8) | (mBuffer[offset+1] & 0xFF);
+	}
+
+	private int readUnsignedShort(int offset)
+	{
+		if(mLittleEndian)
+		{
+			return ((mBuffer[offset+1] & 0xFF) << 8) | (mBuffer[offset] & 0xFF);
+		}
+		return readUnsignedShortBigEndian(offset);
+	}
+
+	private long readUnsignedInt(int offset)
+	{
+		long high = readUnsignedShort(mLittleEndian ? offset+2 : offset);
+		long low = readUnsignedShort(mLittleEndian ? offset : offset+2);
+		return (high << 16) | low;
+	}
+}
@@ -0,0 +1,429 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.BitmapFactory;
+
+/**
+ * Remembers the size, mime type and EXIF orientation of image files, so they don't have to be opened
+ * to find out. Entries are keyed by path and are only used while the file's length and modified time
+ * haven't changed. The index is saved to a single file, which is replaced with a rename so a process
+ * kill half way through saving leaves the last complete index in place.
+ *
+ * Set one on BitmapUtil with BitmapUtil.setMetadataIndex(index) and decodeFile, createScaledImage and
+ * getThumbnail will skip the bounds pass and the EXIF parse for files it knows about. Use warm to fill
+ * it for a whole directory in the background, and get to lay out pages before anything is decoded.
+ */
+public class ImageMetadataIndex
+{
+	public static final int ROTATION_UNKNOWN = -1;
+
+	private static final int MAGIC = 0x494D4958; //IMIX
+	private static final int VERSION = 1;
+	private static final int DEFAULT_MAX_ENTRIES = 10000;
+	private static final int BUFFER_SIZE = 8*1024;
+
+	private final File mFile;
+	private final LinkedHashMap<String, Metadata> mEntries;
+	private final Object mSaveLock = new Object();
+	private int mMaxEntries;
+	private boolean mDirty = false;
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+
+	/**
+	 * Load the index from a file, or start an empty one if the file isn't there or can't be read.
+	 * This reads the whole file, so don't make one on the UI thread.
+	 *
+	 * @param file Where the index is saved, e.g. under Context.getCacheDir()
+	 */
+	public ImageMetadataIndex(File file)
+	{
+		this(file, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param file Where the index is saved
+	 * @param maxEntries The number of files to remember, the least recently used are forgotten first
+	 */
+	public ImageMetadataIndex(File file, int maxEntries)
+	{
+		mFile = file;
+		mMaxEntries = maxEntries;
+		mEntries = new LinkedHashMap<String, Metadata>(0, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest)
+			{
+				return size()>mMaxEntries;
+			}
+		};
+		load();
+	}
+
+	/**
+	 * Look up a file without touching it, other than to check its length and modified time
+	 *
+	 * @param file The image file
+	 * @return What is known about the file, or null if it isn't in the index or has changed since
+	 */
+	public synchronized Metadata get(File file)
+	{
+		String path = file.getAbsolutePath();
+		Metadata metadata = mEntries.get(path);
+		if(metadata!=null && metadata.mLength==file.length() && metadata.mLastModified==file.lastModified())
+		{
+			mHitCount++;
+			return metadata;
+		}
+		if(metadata!=null) //the file has changed
+		{
+			mEntries.remove(path);
+			mDirty = true;
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Look up a file, reading its size and orientation if the index doesn't know them yet
+	 *
+	 * @param file The image file
+	 * @return What is known about the file, or null if it couldn't be decoded
+	 */
+	public Metadata getOrRead(File file)
+	{
+		Metadata metadata = get(file);
+		if(metadata==null)
+		{
+			metadata = read(file);
+			if(metadata!=null)
+			{
+				put(metadata);
+			}
+		}
+		if(metadata!=null && metadata.mRotation==ROTATION_UNKNOWN)
+		{
+			setRotation(file, BitmapUtil.readExifRotation(file.getAbsolutePath()));
+		}
+		return metadata;
+	}
+
+	/**
+	 * Remember a file's size and mime type, e.g. after a bounds pass
+	 *
+	 * @param file The image file
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param mimeType The mime type of the image, can be null
+	 */
+	public void put(File file, int width, int height, String mimeType)
+	{
+		Metadata old = get(file);
+		put(new Metadata(file.getAbsolutePath(), file.length(), file.lastModified(), width, height, mimeType, old!=null ? old.mRotation : ROTATION_UNKNOWN));
+	}
+
+	/**
+	 * Remember a file's EXIF orientation. Does nothing if the file isn't in the index yet.
+	 *
+	 * @param file The image file
+	 * @param rotation 0, 90, 180 or 270
+	 */
+	public synchronized void setRotation(File file, int rotation)
+	{
+		Metadata metadata = mEntries.get(file.getAbsolutePath());
+		if(metadata!=null && metadata.mRotation!=rotation)
+		{
+			metadata.mRotation = rotation;
+			mDirty = true;
+		}
+	}
+
+	public synchronized void remove(File file)
+	{
+		if(mEntries.remove(file.getAbsolutePath())!=null)
+		{
+			mDirty = true;
+		}
+	}
+
+	/**
+	 * Read every image in a directory that the index doesn't know about yet, then save the index.
+	 * Files that aren't images are skipped. This reads a lot of files, so call it from a background thread.
+	 *
+	 * @param directory The directory to index, subdirectories aren't included
+	 * @return The number of images that were read
+	 */
+	public int warm(File directory)
+	{
+		File[] files = directory.listFiles();
+		if(files==null)
+		{
+			return 0;
+		}
+		int readCount = 0;
+		for(int i=0; i<files.length; i++)
+		{
+			if(!files[i].isFile() || get(files[i])!=null)
+			{
+				continue;
+			}
+			Metadata metadata = read(files[i]);
+			if(metadata!=null)
+			{
+				metadata.mRotation = "image/jpeg".equals(metadata.mMimeType) ? BitmapUtil.readExifRotation(files[i].getAbsolutePath()) : 0;
+				put(metadata);
+				readCount++;
+			}
+		}
+		try
+		{
+			save();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return readCount;
+	}
+
+	/**
+	 * Write the index to its file, if anything has changed since it was loaded or last saved
+	 *
+	 * @throws IOException If the file couldn't be written, in which case the last saved index is left as it was
+	 */
+	public void save() throws IOException
+	{
+		synchronized(mSaveLock) //one save at a time, they share the temporary file
+		{
+			Metadata[] entries;
+			synchronized(this)
+			{
+				if(!mDirty)
+				{
+					return;
+				}
+				entries = mEntries.values().toArray(new Metadata[mEntries.size()]);
+				mDirty = false;
+			}
+
+			File newFile = new File(mFile.getPath()+".tmp");
+			FileOutputStream fileStream = null;
+			try
+			{
+				fileStream = new FileOutputStream(newFile);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, BUFFER_SIZE));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(entries.length);
+				for(int i=0; i<entries.length; i++)
+				{
+					Metadata metadata = entries[i];
+					out.writeUTF(metadata.mPath);
+					out.writeLong(metadata.mLength);
+					out.writeLong(metadata.mLastModified);
+					out.writeInt(metadata.mWidth);
+					out.writeInt(metadata.mHeight);
+					out.writeUTF(metadata.mMimeType!=null ? metadata.mMimeType : "");
+					out.writeShort(metadata.mRotation);
+				}
+				out.flush();
+				fileStream.getFD().sync();
+				out.close();
+				fileStream = null;
+			}
+			catch(IOException e)
+			{
+				synchronized(this)
+				{
+					mDirty = true;
+				}
+				BitmapUtil.closeQuietly(fileStream);
+				newFile.delete();
+				throw e;
+			}
+
+			if(!newFile.renameTo(mFile))
+			{
+				synchronized(this)
+				{
+					mDirty = true;
+				}
+				newFile.delete();
+				throw new IOException("Could not rename "+newFile+" to "+mFile);
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		mEntries.clear();
+		mDirty = true;
+	}
+
+	/**
+	 * @return The number of files in the index
+	 */
+	public synchronized int count()
+	{
+		return mEntries.size();
+	}
+
+	public synchronized int hitCount()
+	{
+		return mHitCount;
+	}
+
+	public synchronized int missCount()
+	{
+		return mMissCount;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "ImageMetadataIndex[count="+mEntries.size()+",hits="+mHitCount+",misses="+mMissCount+"]";
+	}
+
+	private synchronized void put(Metadata metadata)
+	{
+		mEntries.put(metadata.mPath, metadata);
+		mDirty = true;
+	}
+
+	/**
+	 * Read the size and mime type of a file with a bounds pass
+	 */
+	private static Metadata read(File file)
+	{
+		long length = file.length();
+		long lastModified = file.lastModified();
+		InputStream stream = null;
+		try
+		{
+			stream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(stream, null, options);
+			if(options.outWidth<=0 || options.outHeight<=0)
+			{
+				return null;
+			}
+			return new Metadata(file.getAbsolutePath(), length, lastModified, options.outWidth, options.outHeight, options.outMimeType, ROTATION_UNKNOWN);
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			BitmapUtil.closeQuietly(stream);
+		}
+	}
+
+	private synchronized void load()
+	{
+		if(!mFile.exists())
+		{
+			return;
+		}
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), BUFFER_SIZE));
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION)
+			{
+				return;
+			}
+			int count = in.readInt();
+			for(int i=0; i<count; i++)
+			{
+				String path = in.readUTF();
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				int width = in.readInt();
+				int height = in.readInt();
+				String mimeType = in.readUTF();
+				int rotation = in.readShort();
+				mEntries.put(path, new Metadata(path, length, lastModified, width, height, mimeType.length()>0 ? mimeType : null, rotation));
+			}
+		}
+		catch(IOException e) //start again rather than trust half an index
+		{
+			mEntries.clear();
+		}
+		finally
+		{
+			BitmapUtil.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * What the index knows about an image file
+	 */
+	public static class Metadata
+	{
+		private final String mPath;
+		private final long mLength;
+		private final long mLastModified;
+		private final int mWidth;
+		private final int mHeight;
+		private final String mMimeType;
+		private volatile int mRotation;
+
+		private Metadata(String path, long length, long lastModified, int width, int height, String mimeType, int rotation)
+		{
+			mPath = path;
+			mLength = length;
+			mLastModified = lastModified;
+			mWidth = width;
+			mHeight = height;
+			mMimeType = mimeType;
+			mRotation = rotation;
+		}
+
+		public String getPath()
+		{
+			return mPath;
+		}
+
+		/**
+		 * @return The width of the image, before any sampling or rotation
+		 */
+		public int getWidth()
+		{
+			return mWidth;
+		}
+
+		/**
+		 * @return The height of the image, before any sampling or rotation
+		 */
+		public int getHeight()
+		{
+			return mHeight;
+		}
+
+		public String getMimeType()
+		{
+			return mMimeType;
+		}
+
+		/**
+		 * @return The EXIF rotation, 0, 90, 180 or 270, or ROTATION_UNKNOWN if the EXIF hasn't been read yet
+		 */
+		public int getRotation()
+		{
+			return mRotation;
+		}
+	}
+}
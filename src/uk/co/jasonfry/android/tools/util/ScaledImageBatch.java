@@ -0,0 +1,505 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.BitmapFactory;
+import android.os.Process;
+
+/**
+ * Makes scaled copies of many images at once, like calling BitmapUtil.createScaledImage for each of
+ * them but spread across several threads. Each thread keeps its own BitmapPool, so the sampled and
+ * scaled bitmaps are reused from one image to the next instead of being allocated for every file.
+ *
+ * run() blocks until the batch is finished, so call it from a background thread.
+ *
+ * To survive the process being killed, give the batch a ScaledImageJournal. Images are recorded in it
+ * as they finish, and a new batch given the same journal only scales the ones that are still to do.
+ * A Throttle can pause the batch between images, e.g. while the battery is low.
+ */
+public class ScaledImageBatch
+{
+	private final ArrayList<Item> mItems = new ArrayList<Item>();
+	private final AtomicInteger mNextItem = new AtomicInteger();
+	private final AtomicInteger mCompletedCount = new AtomicInteger();
+	private final AtomicInteger mFailedCount = new AtomicInteger();
+	private final AtomicInteger mSkippedCount = new AtomicInteger();
+	private int mDesiredWidth;
+	private int mDesiredHeight;
+	private int mThreadCount = Runtime.getRuntime().availableProcessors();
+	private int mPoolSize = 0;
+	private Listener mListener = null;
+	private ScaledImageJournal mJournal = null;
+	private Throttle mThrottle = null;
+	private EncodeOptions mEncodeOptions = null;
+	private volatile boolean mCancelled = false;
+	private long mElapsedTime = 0;
+
+	/**
+	 * @param desiredWidth The width to scale each image down to, as in BitmapUtil.createScaledImage
+	 * @param desiredHeight The height to scale each image down to, as in BitmapUtil.createScaledImage
+	 */
+	public ScaledImageBatch(int desiredWidth, int desiredHeight)
+	{
+		mDesiredWidth = desiredWidth;
+		mDesiredHeight = desiredHeight;
+	}
+
+	/**
+	 * Add an image to the batch. With a journal, an image it already has as pending or done isn't added
+	 * again, pending ones were added by setJournal and done ones don't need scaling.
+	 *
+	 * @param sourceFile The image to scale
+	 * @param destinationFile Where to write the scaled JPEG
+	 * @return The item, which is handed back to the Listener, or null if the journal already has the image
+	 */
+	public Item add(String sourceFile, String destinationFile)
+	{
+		String sourcePath = new File(sourceFile).getPath(); //the same form the workers look it up with
+		if(mJournal!=null)
+		{
+			int state = mJournal.getState(sourcePath);
+			if(state==ScaledImageJournal.STATE_PENDING || state==ScaledImageJournal.STATE_DONE)
+			{
+				return null;
+			}
+			try
+			{
+				mJournal.add(sourcePath, new File(destinationFile).getPath());
+			}
+			catch(IOException e) //the batch still works, it just won't be resumable
+			{
+				e.printStackTrace();
+			}
+		}
+		return addItem(sourceFile, destinationFile);
+	}
+
+	private Item addItem(String sourceFile, String destinationFile)
+	{
+		Item item = new Item(mItems.size(), new File(sourceFile), new File(destinationFile));
+		mItems.add(item);
+		return item;
+	}
+
+	/**
+	 * Add several images to the batch
+	 *
+	 * @param sourceFiles The images to scale
+	 * @param destinationFiles Where to write each scaled JPEG, in the same order as sourceFiles
+	 */
+	public void addAll(List<String> sourceFiles, List<String> destinationFiles)
+	{
+		if(sourceFiles.size()!=destinationFiles.size())
+		{
+			throw new IllegalArgumentException("sourceFiles and destinationFiles are different sizes");
+		}
+		for(int i=0; i<sourceFiles.size(); i++)
+		{
+			add(sourceFiles.get(i), destinationFiles.get(i));
+		}
+	}
+
+	/**
+	 * Set how many images are scaled at once, the default is the number of cores
+	 *
+	 * @param threadCount The number of threads to use
+	 */
+	public void setThreadCount(int threadCount)
+	{
+		mThreadCount = Math.max(1, threadCount);
+	}
+
+	public int getThreadCount()
+	{
+		return mThreadCount;
+	}
+
+	/**
+	 * Set how many bytes of scratch bitmaps each thread may keep between images. The default is an equal
+	 * share of a quarter of the heap.
+	 *
+	 * @param poolSize The size of each thread's BitmapPool in bytes
+	 */
+	public void setPoolSize(int poolSize)
+	{
+		mPoolSize = poolSize;
+	}
+
+	/**
+	 * Record progress in a journal. Images the journal has as pending are added to the batch, images 
+	 * added afterwards are written to the journal, and each image is marked done or failed as it finishes.
+	 * Images the journal has as done are skipped.
+	 *
+	 * @param journal The journal, or null to stop recording progress
+	 */
+	public void setJournal(ScaledImageJournal journal)
+	{
+		mJournal = journal;
+		if(journal!=null)
+		{
+			List<String[]> pending = journal.getPending();
+			for(int i=0; i<pending.size(); i++)
+			{
+				addItem(pending.get(i)[0], pending.get(i)[1]);
+			}
+		}
+	}
+
+	public ScaledImageJournal getJournal()
+	{
+		return mJournal;
+	}
+
+	/**
+	 * Set how the scaled copies are written. Each image gets its own copy of the options, and the bytes
+	 * written for it are available from its Item.
+	 *
+	 * @param encodeOptions The format and quality to write, or null for JPEG at quality 85
+	 */
+	public void setEncodeOptions(EncodeOptions encodeOptions)
+	{
+		mEncodeOptions = encodeOptions;
+	}
+
+	public EncodeOptions getEncodeOptions()
+	{
+		return mEncodeOptions;
+	}
+
+	/**
+	 * Set something to ask before each image whether the batch should pause, e.g. a BatteryThrottle
+	 *
+	 * @param throttle The throttle, or null to never pause
+	 */
+	public void setThrottle(Throttle throttle)
+	{
+		mThrottle = throttle;
+	}
+
+	public Throttle getThrottle()
+	{
+		return mThrottle;
+	}
+
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	public Listener getListener()
+	{
+		return mListener;
+	}
+
+	/**
+	 * Stop the batch once the images being scaled right now are finished
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return mCancelled;
+	}
+
+	/**
+	 * Scale every image in the batch, returning once they have all finished or failed
+	 *
+	 * @return The number of images that were scaled successfully
+	 */
+	public int run()
+	{
+		long startTime = System.currentTimeMillis();
+		int threadCount = Math.min(mThreadCount, Math.max(1, mItems.size()));
+		int poolSize = mPoolSize > 0 ? mPoolSize : (int) Math.min(Integer.MAX_VALUE, Math.max(1, Runtime.getRuntime().maxMemory() / 4 / threadCount));
+
+		Thread[] threads = new Thread[threadCount];
+		for(int i=0; i<threadCount; i++)
+		{
+			threads[i] = new Thread(new Worker(new BitmapPool(poolSize)), "ScaledImageBatch #"+(i+1));
+			threads[i].start();
+		}
+		for(int i=0; i<threadCount; i++)
+		{
+			try
+			{
+				threads[i].join();
+			}
+			catch(InterruptedException e)
+			{
+				mCancelled = true;
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		mElapsedTime = System.currentTimeMillis() - startTime;
+		return mCompletedCount.get();
+	}
+
+	/**
+	 * @return The number of images in the batch
+	 */
+	public int getItemCount()
+	{
+		return mItems.size();
+	}
+
+	/**
+	 * @return The number of images that finished successfully, including the ones that were skipped
+	 */
+	public int getCompletedCount()
+	{
+		return mCompletedCount.get();
+	}
+
+	public int getFailedCount()
+	{
+		return mFailedCount.get();
+	}
+
+	/**
+	 * @return The number of images that weren't scaled because the journal or a valid destination file showed they already had been
+	 */
+	public int getSkippedCount()
+	{
+		return mSkippedCount.get();
+	}
+
+	/**
+	 * @return How long the last call to run() took, in milliseconds
+	 */
+	public long getElapsedTime()
+	{
+		return mElapsedTime;
+	}
+
+	/**
+	 * @return The number of images scaled per second by the last call to run(), not counting skipped ones
+	 */
+	public float getImagesPerSecond()
+	{
+		if(mElapsedTime<=0)
+		{
+			return 0;
+		}
+		return (mCompletedCount.get() - mSkippedCount.get()) * 1000f / mElapsedTime;
+	}
+
+	private class Worker implements Runnable
+	{
+		private final BitmapPool mBitmapPool;
+
+		public Worker(BitmapPool bitmapPool)
+		{
+			mBitmapPool = bitmapPool;
+		}
+
+		public void run()
+		{
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			int index;
+			while(!mCancelled && waitForThrottle() && (index = mNextItem.getAndIncrement()) < mItems.size())
+			{
+				Item item = mItems.get(index);
+				try
+				{
+					if(isAlreadyScaled(item))
+					{
+						mSkippedCount.incrementAndGet();
+					}
+					else
+					{
+						EncodeOptions encodeOptions = mEncodeOptions!=null ? new EncodeOptions(mEncodeOptions) : new EncodeOptions();
+						BitmapUtil.createScaledImage(item.getSourceFile(), item.getDestinationFile(), mDesiredWidth, mDesiredHeight, encodeOptions, mBitmapPool);
+						item.mBytesWritten = encodeOptions.outBytesWritten;
+					}
+					record(item, true);
+					int completed = mCompletedCount.incrementAndGet();
+					if(mListener!=null)
+					{
+						mListener.onItemCompleted(item, completed + mFailedCount.get(), mItems.size());
+					}
+				}
+				catch(Exception e) //one bad file shouldn't stop the batch
+				{
+					record(item, false);
+					int failed = mFailedCount.incrementAndGet();
+					if(mListener!=null)
+					{
+						mListener.onItemFailed(item, e, failed + mCompletedCount.get(), mItems.size());
+					}
+				}
+			}
+			mBitmapPool.evictAll();
+		}
+
+		/**
+		 * Sleep while the throttle says to pause
+		 *
+		 * @return false if the batch was cancelled or interrupted while waiting
+		 */
+		private boolean waitForThrottle()
+		{
+			Throttle throttle = mThrottle;
+			long pause;
+			while(throttle!=null && !mCancelled && (pause = throttle.getPauseTime())>0)
+			{
+				try
+				{
+					Thread.sleep(pause);
+				}
+				catch(InterruptedException e)
+				{
+					mCancelled = true;
+					return false;
+				}
+			}
+			return !mCancelled;
+		}
+
+		/**
+		 * An image doesn't need scaling again if the journal says it is done, or if its destination was written
+		 * after the source was last changed and is the width this batch would make. createScaledImage writes
+		 * to a temporary file and renames it, so a destination that is there was written completely and a
+		 * bounds decode is enough to check it.
+		 */
+		private boolean isAlreadyScaled(Item item)
+		{
+			ScaledImageJournal journal = mJournal;
+			if(journal!=null && journal.getState(item.getSourceFile().getPath())==ScaledImageJournal.STATE_DONE)
+			{
+				return true;
+			}
+			File destination = item.getDestinationFile();
+			if(!destination.isFile() || destination.length()==0 || destination.lastModified()<item.getSourceFile().lastModified())
+			{
+				return false;
+			}
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(destination.getPath(), options);
+			int width = options.outWidth;
+			if(width<=0 || options.outHeight<=0 || width>mDesiredWidth)
+			{
+				return false;
+			}
+			if(width<mDesiredWidth) //only right if the source is that narrow too, otherwise it was made for a smaller size
+			{
+				options.outWidth = 0;
+				BitmapFactory.decodeFile(item.getSourceFile().getPath(), options);
+				return width==options.outWidth;
+			}
+			return true;
+		}
+
+		private void record(Item item, boolean done)
+		{
+			ScaledImageJournal journal = mJournal;
+			if(journal==null)
+			{
+				return;
+			}
+			try
+			{
+				if(done)
+				{
+					journal.markDone(item.getSourceFile().getPath());
+				}
+				else
+				{
+					journal.markFailed(item.getSourceFile().getPath());
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * An image in the batch
+	 */
+	public static class Item
+	{
+		private final int mIndex;
+		private final File mSourceFile;
+		private final File mDestinationFile;
+		private volatile long mBytesWritten = 0;
+
+		private Item(int index, File sourceFile, File destinationFile)
+		{
+			mIndex = index;
+			mSourceFile = sourceFile;
+			mDestinationFile = destinationFile;
+		}
+
+		/**
+		 * @return The position of the item in the batch
+		 */
+		public int getIndex()
+		{
+			return mIndex;
+		}
+
+		public File getSourceFile()
+		{
+			return mSourceFile;
+		}
+
+		public File getDestinationFile()
+		{
+			return mDestinationFile;
+		}
+
+		/**
+		 * @return The number of bytes written to the destination file, 0 if it hasn't been written or was skipped
+		 */
+		public long getBytesWritten()
+		{
+			return mBytesWritten;
+		}
+	}
+
+	/**
+	 * Implement this to pause a batch between images, e.g. while the battery is low or the device is hot.
+	 * It is called on the batch's worker threads.
+	 */
+	public interface Throttle
+	{
+		/**
+		 * @return How long to wait in milliseconds before asking again, or 0 to carry on with the next image
+		 */
+		public abstract long getPauseTime();
+	}
+
+	/**
+	 * Implement this to follow the progress of a batch. The methods are called on the batch's worker
+	 * threads, so post to a Handler before touching any views.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param item The image that was scaled
+		 * @param finishedCount How many images have finished so far, successfully or not
+		 * @param totalCount How many images are in the batch
+		 */
+		public abstract void onItemCompleted(Item item, int finishedCount, int totalCount);
+
+		/**
+		 * @param item The image that couldn't be scaled
+		 * @param e Why it failed
+		 * @param finishedCount How many images have finished so far, successfully or not
+		 * @param totalCount How many images are in the batch
+		 */
+		public abstract void onItemFailed(Item item, Exception e, int finishedCount, int totalCount);
+	}
+}
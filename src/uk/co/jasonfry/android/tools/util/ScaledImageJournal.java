@@ -0,0 +1,364 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A file that remembers which images of a ScaledImageBatch are still to do, which are done and which
+ * failed, so a batch that was killed part way through can carry on where it left off. Give it to a batch
+ * with ScaledImageBatch.setJournal.
+ *
+ * Each change is appended to the file as one line, so a kill can at worst lose a half written last line,
+ * which is ignored when the journal is opened again. The file is rewritten, and replaced with a rename,
+ * once it is mostly lines that have been superseded.
+ */
+public class ScaledImageJournal
+{
+	public static final int STATE_PENDING = 0;
+	public static final int STATE_DONE = 1;
+	public static final int STATE_FAILED = 2;
+
+	private static final char ADDED = 'A';
+	private static final char DONE = 'D';
+	private static final char FAILED = 'F';
+	private static final String ENCODING = "UTF-8";
+	private static final int COMPACT_RATIO = 2;
+	private static final int MIN_COMPACT_LINES = 64;
+
+	private final File mFile;
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+	private OutputStream mOut;
+	private int mLineCount = 0;
+
+	/**
+	 * Open a journal, reading what is already in it
+	 *
+	 * @param file The journal file, which is made if it isn't there
+	 * @throws IOException If the file can't be read or written
+	 */
+	public ScaledImageJournal(File file) throws IOException
+	{
+		mFile = file;
+		boolean complete = load();
+		if(!complete || mLineCount>MIN_COMPACT_LINES && mLineCount>mEntries.size()*COMPACT_RATIO)
+		{
+			compact();
+		}
+		mOut = new FileOutputStream(mFile, true);
+	}
+
+	/**
+	 * Add an image to the journal as pending, unless it is already there
+	 *
+	 * @param sourceFile The image to scale
+	 * @param destinationFile Where the scaled copy goes
+	 * @return true if it wasn't in the journal before
+	 * @throws IOException If the journal can't be written
+	 */
+	public synchronized boolean add(String sourceFile, String destinationFile) throws IOException
+	{
+		checkPath(sourceFile);
+		checkPath(destinationFile);
+		if(mEntries.containsKey(sourceFile))
+		{
+			return false;
+		}
+		append(ADDED, sourceFile, destinationFile);
+		mEntries.put(sourceFile, new Entry(sourceFile, destinationFile));
+		return true;
+	}
+
+	/**
+	 * Record that an image has been scaled
+	 *
+	 * @param sourceFile The image
+	 * @throws IOException If the journal can't be written
+	 */
+	public synchronized void markDone(String sourceFile) throws IOException
+	{
+		setState(sourceFile, STATE_DONE, DONE);
+	}
+
+	/**
+	 * Record that an image couldn't be scaled, so it isn't tried again until retryFailed is called
+	 *
+	 * @param sourceFile The image
+	 * @throws IOException If the journal can't be written
+	 */
+	public synchronized void markFailed(String sourceFile) throws IOException
+	{
+		setState(sourceFile, STATE_FAILED, FAILED);
+	}
+
+	/**
+	 * Make every failed image pending again
+	 *
+	 * @throws IOException If the journal can't be written
+	 */
+	public synchronized void retryFailed() throws IOException
+	{
+		Iterator<Entry> iterator = mEntries.values().iterator();
+		while(iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			if(entry.mState==STATE_FAILED)
+			{
+				append(ADDED, entry.mSourceFile, entry.mDestinationFile);
+				entry.mState = STATE_PENDING;
+			}
+		}
+	}
+
+	/**
+	 * @param sourceFile The image
+	 * @return STATE_PENDING, STATE_DONE or STATE_FAILED, or -1 if the image isn't in the journal
+	 */
+	public synchronized int getState(String sourceFile)
+	{
+		Entry entry = mEntries.get(sourceFile);
+		return entry!=null ? entry.mState : -1;
+	}
+
+	/**
+	 * @return The source and destination of every pending image, in the order they were added
+	 */
+	public synchronized List<String[]> getPending()
+	{
+		ArrayList<String[]> pending = new ArrayList<String[]>();
+		Iterator<Entry> iterator = mEntries.values().iterator();
+		while(iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			if(entry.mState==STATE_PENDING)
+			{
+				pending.add(new String[]{entry.mSourceFile, entry.mDestinationFile});
+			}
+		}
+		return pending;
+	}
+
+	public synchronized int getPendingCount()
+	{
+		return count(STATE_PENDING);
+	}
+
+	public synchronized int getDoneCount()
+	{
+		return count(STATE_DONE);
+	}
+
+	public synchronized int getFailedCount()
+	{
+		return count(STATE_FAILED);
+	}
+
+	/**
+	 * Close the journal file
+	 */
+	public synchronized void close()
+	{
+		BitmapUtil.closeQuietly(mOut);
+		mOut = null;
+	}
+
+	/**
+	 * Rewrite the journal with one line for each image, replacing the old file with a rename
+	 *
+	 * @throws IOException If the new file can't be written, in which case the old one is left as it was
+	 */
+	public synchronized void compact() throws IOException
+	{
+		File newFile = new File(mFile.getPath()+".tmp");
+		FileOutputStream fileStream = null;
+		try
+		{
+			fileStream = new FileOutputStream(newFile);
+			Writer writer = new OutputStreamWriter(fileStream, ENCODING);
+			Iterator<Entry> iterator = mEntries.values().iterator();
+			while(iterator.hasNext())
+			{
+				Entry entry = iterator.next();
+				char state = entry.mState==STATE_DONE ? DONE : (entry.mState==STATE_FAILED ? FAILED : ADDED);
+				writer.write(formatLine(state, entry.mSourceFile, entry.mDestinationFile));
+			}
+			writer.flush();
+			fileStream.getFD().sync();
+			writer.close();
+			fileStream = null;
+		}
+		catch(IOException e)
+		{
+			BitmapUtil.closeQuietly(fileStream);
+			newFile.delete();
+			throw e;
+		}
+
+		boolean open = mOut!=null;
+		close();
+		if(!newFile.renameTo(mFile))
+		{
+			newFile.delete();
+			throw new IOException("Could not rename "+newFile+" to "+mFile);
+		}
+		mLineCount = mEntries.size();
+		if(open)
+		{
+			mOut = new FileOutputStream(mFile, true);
+		}
+	}
+
+	private void setState(String sourceFile, int state, char line) throws IOException
+	{
+		Entry entry = mEntries.get(sourceFile);
+		if(entry==null)
+		{
+			throw new IllegalArgumentException(sourceFile+" isn't in the journal");
+		}
+		if(entry.mState!=state)
+		{
+			append(line, sourceFile, entry.mDestinationFile);
+			entry.mState = state;
+		}
+	}
+
+	private int count(int state)
+	{
+		int count = 0;
+		Iterator<Entry> iterator = mEntries.values().iterator();
+		while(iterator.hasNext())
+		{
+			if(iterator.next().mState==state)
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Write a whole line in one go, so a kill can't leave half of it behind other than at the very end
+	 */
+	private void append(char state, String sourceFile, String destinationFile) throws IOException
+	{
+		if(mOut==null)
+		{
+			throw new IOException("The journal is closed");
+		}
+		mOut.write(formatLine(state, sourceFile, destinationFile).getBytes(ENCODING));
+		mOut.flush();
+		mLineCount++;
+	}
+
+	/**
+	 * @return false if the last line was cut short, in which case the file needs rewriting before anything is appended to it
+	 */
+	private boolean load() throws IOException
+	{
+		if(!mFile.exists())
+		{
+			return true;
+		}
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), ENCODING));
+			StringBuilder content = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while((read = reader.read(buffer))>=0)
+			{
+				content.append(buffer, 0, read);
+			}
+
+			int start = 0;
+			int end;
+			while((end = content.indexOf("\n", start))>=0) //a last line without a newline was cut short, so it's skipped
+			{
+				readLine(content.substring(start, end));
+				start = end + 1;
+			}
+			return start==content.length();
+		}
+		finally
+		{
+			BitmapUtil.closeQuietly(reader);
+		}
+	}
+
+	private void readLine(String line)
+	{
+		mLineCount++;
+		String[] parts = line.split("\t", -1);
+		if(parts.length!=3 || parts[0].length()!=1)
+		{
+			return;
+		}
+		Entry entry = mEntries.get(parts[1]);
+		switch(parts[0].charAt(0))
+		{
+			case ADDED :
+				if(entry==null)
+				{
+					mEntries.put(parts[1], new Entry(parts[1], parts[2]));
+				}
+				else
+				{
+					entry.mState = STATE_PENDING;
+				}
+				break;
+			case DONE :
+				if(entry==null)
+				{
+					entry = new Entry(parts[1], parts[2]);
+					mEntries.put(parts[1], entry);
+				}
+				entry.mState = STATE_DONE;
+				break;
+			case FAILED :
+				if(entry==null)
+				{
+					entry = new Entry(parts[1], parts[2]);
+					mEntries.put(parts[1], entry);
+				}
+				entry.mState = STATE_FAILED;
+				break;
+		}
+	}
+
+	private static String formatLine(char state, String sourceFile, String destinationFile)
+	{
+		return state+"\t"+sourceFile+"\t"+destinationFile+"\n";
+	}
+
+	private static void checkPath(String path)
+	{
+		if(path.indexOf('\t')>=0 || path.indexOf('\n')>=0)
+		{
+			throw new IllegalArgumentException("Paths in the journal can't contain tabs or new lines: "+path);
+		}
+	}
+
+	private static class Entry
+	{
+		private final String mSourceFile;
+		private final String mDestinationFile;
+		private int mState = STATE_PENDING;
+
+		public Entry(String sourceFile, String destinationFile)
+		{
+			mSourceFile = sourceFile;
+			mDestinationFile = destinationFile;
+		}
+	}
+}
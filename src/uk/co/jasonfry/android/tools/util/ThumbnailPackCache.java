@@ -0,0 +1,670 @@
+package uk.co.jasonfry.android.tools.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * A disk cache for small bitmaps, e.g. the thumbnails in a gallery, kept in two files rather than one file
+ * per thumbnail. Compressed thumbnails are appended to a pack file, and an index file of fixed size records
+ * says where each one is. When the cache is opened the index is read and the pack file is memory mapped,
+ * so reading a thumbnail doesn't open any files.
+ *
+ * Both files are only ever appended to, and an index record is written after the bytes it points at, so
+ * if the process is killed half way through a put the thumbnail is just missing next time. Records whose
+ * bytes don't match their checksum are dropped when they are read.
+ *
+ * Once the pack file is bigger than the maximum size it is compacted: the most recently used thumbnails
+ * are copied into a new pack file and a new index replaces the old one with a rename.
+ *
+ * Set one on BitmapUtil with BitmapUtil.setDiskCache(cache) and decodeFile and getThumbnail will check it
+ * after the memory cache, and write what they decode to it.
+ */
+public class ThumbnailPackCache
+{
+	private static final int INDEX_MAGIC = 0x54504B49; //TPKI
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 24;
+	private static final int REMOVED = -1;
+	private static final int DEFAULT_MAX_DIMENSION = 512;
+	private static final int JPEG_QUALITY = 85;
+	private static final String INDEX_FILE = "thumbnails.index";
+	private static final String NEW_INDEX_FILE = "thumbnails.index.tmp";
+	private static final String PACK_FILE_PREFIX = "thumbnails.";
+	private static final String PACK_FILE_SUFFIX = ".pack";
+
+	private final File mDirectory;
+	private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(0, 0.75f, true);
+	private long mMaxSize;
+	private int mMaxDimension = DEFAULT_MAX_DIMENSION;
+	private int mGeneration;
+	private RandomAccessFile mIndexFile;
+	private RandomAccessFile mPackFile;
+	private MappedByteBuffer mMappedPack;
+	private long mPackSize;
+	private long mIndexSize;
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mCorruptCount = 0;
+	private int mCompactionCount = 0;
+
+	/**
+	 * Open the cache in a directory, making it if it isn't there
+	 *
+	 * @param directory Where to keep the pack and index files, e.g. under Context.getCacheDir()
+	 * @param maxSize The size in bytes the pack file may grow to before it is compacted
+	 * @throws IOException If the files can't be opened
+	 */
+	public ThumbnailPackCache(File directory, long maxSize) throws IOException
+	{
+		if(maxSize<=0)
+		{
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		if(!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not make "+directory);
+		}
+		open();
+	}
+
+	/**
+	 * Get a thumbnail out of the cache
+	 *
+	 * @param key The key it was put with, e.g. from BitmapCache.key
+	 * @param options The options to decode it with, can be null
+	 * @return The thumbnail, or null if it isn't in the cache
+	 */
+	public Bitmap get(String key, BitmapFactory.Options options)
+	{
+		byte[] bytes = getBytes(key);
+		if(bytes==null)
+		{
+			return null;
+		}
+		return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+	}
+
+	/**
+	 * Get the compressed bytes of a thumbnail out of the cache
+	 *
+	 * @param key The key it was put with
+	 * @return The JPEG or PNG bytes, or null if it isn't in the cache
+	 */
+	public synchronized byte[] getBytes(String key)
+	{
+		Long hash = Long.valueOf(hash(key));
+		Entry entry = mEntries.get(hash);
+		if(entry==null || mPackFile==null)
+		{
+			mMissCount++;
+			return null;
+		}
+
+		byte[] record = new byte[entry.mLength];
+		try
+		{
+			readRecord(entry, record);
+		}
+		catch(IOException e)
+		{
+			mMissCount++;
+			return null;
+		}
+		if(!entry.mVerified)
+		{
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			if((int) crc.getValue()!=entry.mCrc)
+			{
+				mEntries.remove(hash);
+				mCorruptCount++;
+				mMissCount++;
+				try
+				{
+					appendIndexRecord(hash.longValue(), 0, REMOVED, 0);
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+				return null;
+			}
+			entry.mVerified = true;
+		}
+
+		int keyLength = ((record[0] & 0xFF) << 8) | (record[1] & 0xFF);
+		if(keyLength+2>record.length || !key.equals(decodeKey(record, 2, keyLength))) //a different key with the same hash
+		{
+			mMissCount++;
+			return null;
+		}
+		mHitCount++;
+		byte[] bytes = new byte[record.length - 2 - keyLength];
+		System.arraycopy(record, 2 + keyLength, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Put a thumbnail in the cache, as a JPEG or as a PNG if it has transparency. Bitmaps bigger than
+	 * the maximum dimension are ignored.
+	 *
+	 * @param key The key to get it back with
+	 * @param bitmap The thumbnail
+	 * @return true if it was written
+	 */
+	public boolean put(String key, Bitmap bitmap)
+	{
+		if(bitmap==null || bitmap.isRecycled() || Math.max(bitmap.getWidth(), bitmap.getHeight())>mMaxDimension)
+		{
+			return false;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(BitmapCache.getBitmapSize(bitmap)/8);
+		boolean hasAlpha = bitmap.hasAlpha();
+		if(!bitmap.compress(hasAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out))
+		{
+			return false;
+		}
+		return put(key, out.toByteArray());
+	}
+
+	/**
+	 * Put the compressed bytes of a thumbnail in the cache
+	 *
+	 * @param key The key to get it back with
+	 * @param bytes The JPEG or PNG bytes
+	 * @return true if it was written
+	 */
+	public synchronized boolean put(String key, byte[] bytes)
+	{
+		if(mPackFile==null)
+		{
+			return false;
+		}
+		byte[] keyBytes = encodeKey(key);
+		if(keyBytes.length>0xFFFF)
+		{
+			return false;
+		}
+		ByteBuffer record = ByteBuffer.allocate(2 + keyBytes.length + bytes.length);
+		record.putShort((short) keyBytes.length);
+		record.put(keyBytes);
+		record.put(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(record.array());
+
+		Entry entry = new Entry(mPackSize, record.capacity(), (int) crc.getValue());
+		entry.mVerified = true;
+		try
+		{
+			record.flip();
+			writeFully(mPackFile.getChannel(), record, mPackSize);
+			mPackSize += entry.mLength;
+			appendIndexRecord(hash(key), entry.mOffset, entry.mLength, entry.mCrc); //only after the bytes are there
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		mEntries.put(Long.valueOf(hash(key)), entry);
+
+		if(mPackSize>mMaxSize)
+		{
+			compact();
+		}
+		return true;
+	}
+
+	/**
+	 * Take a thumbnail out of the cache
+	 *
+	 * @param key The key it was put with
+	 */
+	public synchronized void remove(String key)
+	{
+		long hash = hash(key);
+		if(mEntries.remove(Long.valueOf(hash))!=null && mPackFile!=null)
+		{
+			try
+			{
+				appendIndexRecord(hash, 0, REMOVED, 0);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public synchronized boolean contains(String key)
+	{
+		return mEntries.containsKey(Long.valueOf(hash(key)));
+	}
+
+	/**
+	 * Copy the most recently used thumbnails into a new pack file, until it is three quarters of the maximum size
+	 */
+	public synchronized void compact()
+	{
+		if(mPackFile==null)
+		{
+			return;
+		}
+
+		//most recently used last, so walk backwards to keep the newest
+		ArrayList<Map.Entry<Long, Entry>> entries = new ArrayList<Map.Entry<Long, Entry>>(mEntries.entrySet());
+		ArrayList<Map.Entry<Long, Entry>> kept = new ArrayList<Map.Entry<Long, Entry>>();
+		long keptSize = 0;
+		for(int i=entries.size()-1; i>=0; i--)
+		{
+			Entry entry = entries.get(i).getValue();
+			if(keptSize+entry.mLength>mMaxSize*3/4)
+			{
+				break;
+			}
+			keptSize += entry.mLength;
+			kept.add(0, entries.get(i));
+		}
+
+		int newGeneration = mGeneration + 1;
+		File newPack = getPackFile(newGeneration);
+		File newIndex = new File(mDirectory, NEW_INDEX_FILE);
+		RandomAccessFile packOut = null;
+		RandomAccessFile indexOut = null;
+		LinkedHashMap<Long, Entry> newEntries = new LinkedHashMap<Long, Entry>(0, 0.75f, true);
+		try
+		{
+			packOut = new RandomAccessFile(newPack, "rw");
+			packOut.setLength(0);
+			indexOut = new RandomAccessFile(newIndex, "rw");
+			indexOut.setLength(0);
+			ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + kept.size() * RECORD_SIZE);
+			writeHeader(index, newGeneration);
+
+			long offset = 0;
+			for(int i=0; i<kept.size(); i++)
+			{
+				Entry entry = kept.get(i).getValue();
+				byte[] record = new byte[entry.mLength];
+				readRecord(entry, record);
+				writeFully(packOut.getChannel(), ByteBuffer.wrap(record), offset);
+				Entry newEntry = new Entry(offset, entry.mLength, entry.mCrc);
+				newEntry.mVerified = entry.mVerified;
+				newEntries.put(kept.get(i).getKey(), newEntry);
+				index.putLong(kept.get(i).getKey().longValue()).putLong(offset).putInt(entry.mLength).putInt(entry.mCrc);
+				offset += entry.mLength;
+			}
+			index.flip();
+			writeFully(indexOut.getChannel(), index, 0);
+			packOut.getChannel().force(true);
+			indexOut.getChannel().force(true);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			BitmapUtil.closeQuietly(packOut);
+			BitmapUtil.closeQuietly(indexOut);
+			newPack.delete();
+			newIndex.delete();
+			return;
+		}
+		BitmapUtil.closeQuietly(packOut);
+		BitmapUtil.closeQuietly(indexOut);
+
+		//the rename is the moment the new files take over, before it the old ones are still complete
+		closeFiles();
+		if(!newIndex.renameTo(new File(mDirectory, INDEX_FILE)))
+		{
+			newPack.delete();
+			newIndex.delete();
+		}
+		else
+		{
+			getPackFile(mGeneration).delete();
+			mCompactionCount++;
+		}
+		try
+		{
+			open();
+			if(mGeneration==newGeneration)
+			{
+				copyVerified(newEntries);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			closeFiles();
+		}
+	}
+
+	/**
+	 * Close the files, after which the cache is empty until it is opened again with a new ThumbnailPackCache
+	 */
+	public synchronized void close()
+	{
+		try
+		{
+			if(mPackFile!=null)
+			{
+				mPackFile.getChannel().force(false);
+				mIndexFile.getChannel().force(false);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		closeFiles();
+		mEntries.clear();
+	}
+
+	/**
+	 * Set the size of the biggest bitmap put will write, thumbnails are what the cache is for
+	 *
+	 * @param maxDimension The maximum width and height in pixels, 512 by default
+	 */
+	public synchronized void setMaxDimension(int maxDimension)
+	{
+		mMaxDimension = maxDimension;
+	}
+
+	public synchronized int getMaxDimension()
+	{
+		return mMaxDimension;
+	}
+
+	/**
+	 * @return The size of the pack file in bytes, including thumbnails that have been replaced or removed
+	 */
+	public synchronized long size()
+	{
+		return mPackSize;
+	}
+
+	public synchronized long maxSize()
+	{
+		return mMaxSize;
+	}
+
+	/**
+	 * Change the size the pack file may grow to, compacting it if it is already bigger
+	 *
+	 * @param maxSize The new maximum size in bytes
+	 */
+	public synchronized void setMaxSize(long maxSize)
+	{
+		mMaxSize = maxSize;
+		if(mPackSize>maxSize)
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * @return The number of thumbnails in the cache
+	 */
+	public synchronized int count()
+	{
+		return mEntries.size();
+	}
+
+	public synchronized int hitCount()
+	{
+		return mHitCount;
+	}
+
+	public synchronized int missCount()
+	{
+		return mMissCount;
+	}
+
+	/**
+	 * @return The number of thumbnails that were dropped because their bytes didn't match their checksum
+	 */
+	public synchronized int corruptCount()
+	{
+		return mCorruptCount;
+	}
+
+	public synchronized int compactionCount()
+	{
+		return mCompactionCount;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "ThumbnailPackCache[size="+mPackSize+",maxSize="+mMaxSize+",count="+mEntries.size()+",hits="+mHitCount+",misses="+mMissCount+",corrupt="+mCorruptCount+",compactions="+mCompactionCount+"]";
+	}
+
+	private void open() throws IOException
+	{
+		mEntries.clear();
+		new File(mDirectory, NEW_INDEX_FILE).delete(); //left over from a compaction that didn't finish
+
+		File indexFile = new File(mDirectory, INDEX_FILE);
+		mIndexFile = new RandomAccessFile(indexFile, "rw");
+		FileChannel indexChannel = mIndexFile.getChannel();
+		long indexSize = indexChannel.size();
+		mGeneration = 0;
+		ByteBuffer index = null;
+		if(indexSize>=HEADER_SIZE)
+		{
+			index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+			if(index.getInt()!=INDEX_MAGIC || index.getInt()!=VERSION)
+			{
+				index = null;
+			}
+			else
+			{
+				mGeneration = index.getInt();
+				index.getInt();
+			}
+		}
+		if(index==null) //new or unreadable, start again
+		{
+			mIndexFile.setLength(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			writeHeader(header, mGeneration);
+			header.flip();
+			writeFully(indexChannel, header, 0);
+			indexSize = HEADER_SIZE;
+		}
+		deleteOtherPackFiles();
+
+		mPackFile = new RandomAccessFile(getPackFile(mGeneration), "rw");
+		FileChannel packChannel = mPackFile.getChannel();
+		mPackSize = packChannel.size();
+		mMappedPack = mPackSize>0 ? packChannel.map(FileChannel.MapMode.READ_ONLY, 0, mPackSize) : null;
+
+		if(index!=null)
+		{
+			int records = (int) ((indexSize - HEADER_SIZE) / RECORD_SIZE);
+			for(int i=0; i<records; i++)
+			{
+				Long hash = Long.valueOf(index.getLong());
+				long offset = index.getLong();
+				int length = index.getInt();
+				int crc = index.getInt();
+				if(length==REMOVED)
+				{
+					mEntries.remove(hash);
+				}
+				else if(length>0 && offset>=0 && offset+length<=mPackSize) //bytes that never made it to the pack file are skipped
+				{
+					mEntries.put(hash, new Entry(offset, length, crc));
+				}
+			}
+			indexSize = HEADER_SIZE + (long) records * RECORD_SIZE;
+			mIndexFile.setLength(indexSize); //drop a record that was only partly written
+		}
+		mIndexSize = indexSize;
+	}
+
+	private void closeFiles()
+	{
+		mMappedPack = null;
+		BitmapUtil.closeQuietly(mPackFile);
+		BitmapUtil.closeQuietly(mIndexFile);
+		mPackFile = null;
+		mIndexFile = null;
+	}
+
+	private void deleteOtherPackFiles()
+	{
+		String current = getPackFile(mGeneration).getName();
+		File[] files = mDirectory.listFiles();
+		if(files==null)
+		{
+			return;
+		}
+		for(int i=0; i<files.length; i++)
+		{
+			String name = files[i].getName();
+			if(name.startsWith(PACK_FILE_PREFIX) && name.endsWith(PACK_FILE_SUFFIX) && !name.equals(current))
+			{
+				files[i].delete();
+			}
+		}
+	}
+
+	private void copyVerified(LinkedHashMap<Long, Entry> entries)
+	{
+		Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<Long, Entry> entry = iterator.next();
+			Entry opened = mEntries.get(entry.getKey());
+			if(opened!=null)
+			{
+				opened.mVerified = entry.getValue().mVerified;
+			}
+		}
+	}
+
+	/**
+	 * Read a record from the mapped pack file, or from the channel if it was written after the file was mapped
+	 */
+	private void readRecord(Entry entry, byte[] record) throws IOException
+	{
+		if(mMappedPack!=null && entry.mOffset+entry.mLength<=mMappedPack.capacity())
+		{
+			ByteBuffer mapped = mMappedPack.duplicate();
+			mapped.position((int) entry.mOffset);
+			mapped.get(record);
+		}
+		else
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			FileChannel channel = mPackFile.getChannel();
+			long position = entry.mOffset;
+			while(buffer.hasRemaining())
+			{
+				int read = channel.read(buffer, position);
+				if(read<0)
+				{
+					throw new IOException("Unexpected end of pack file");
+				}
+				position += read;
+			}
+		}
+	}
+
+	private void appendIndexRecord(long hash, long offset, int length, int crc) throws IOException
+	{
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putLong(hash).putLong(offset).putInt(length).putInt(crc);
+		record.flip();
+		writeFully(mIndexFile.getChannel(), record, mIndexSize);
+		mIndexSize += RECORD_SIZE;
+	}
+
+	private File getPackFile(int generation)
+	{
+		return new File(mDirectory, PACK_FILE_PREFIX+generation+PACK_FILE_SUFFIX);
+	}
+
+	private static void writeHeader(ByteBuffer buffer, int generation)
+	{
+		buffer.putInt(INDEX_MAGIC).putInt(VERSION).putInt(generation).putInt(0);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a, so the index records can be a fixed size
+	 */
+	private static long hash(String key)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0; i<key.length(); i++)
+		{
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static byte[] encodeKey(String key)
+	{
+		try
+		{
+			return key.getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String decodeKey(byte[] bytes, int offset, int length)
+	{
+		try
+		{
+			return new String(bytes, offset, length, "UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class Entry
+	{
+		private final long mOffset;
+		private final int mLength;
+		private final int mCrc;
+		private boolean mVerified = false;
+
+		public Entry(long offset, int length, int crc)
+		{
+			mOffset = offset;
+			mLength = length;
+			mCrc = crc;
+		}
+	}
+}
@@ -223,16 +223,22 @@ public class PageView extends BounceSwipeView
 	@Override
 	public void smoothScrollToPage(int page)
 	{
-		scrollToPage(page,true);
+		scrollToPage(page,true,0);
+	}
+	
+	@Override
+	public void smoothScrollToPage(int page, float velocity)
+	{
+		scrollToPage(page,true,velocity);
 	}
 	
 	@Override 
 	public void scrollToPage(int page)
 	{
-		scrollToPage(page,false);
+		scrollToPage(page,false,0);
 	}
 	
-	private void scrollToPage(int page, boolean smooth) 
+	private void scrollToPage(int page, boolean smooth, float velocity) 
 	{
 		if(!mCarouselMode && getCurrentPage()==getPageCount()-1 && page>=getCurrentPage() ||
 			!mCarouselMode && getCurrentPage()==0 && page<=0)
@@ -241,7 +247,7 @@ public class PageView extends BounceSwipeView
 		}
 		else if(getCurrentPage()!=page)
 		{
-			rearrangePages(getCurrentPage(), page, smooth);
+			rearrangePages(getCurrentPage(), page, smooth, velocity);
 			notifiyAssignedOnPageChangedListener(page);
 		}
 	}
@@ -278,7 +284,7 @@ public class PageView extends BounceSwipeView
 		}
 	}
 	
-	private void rearrangePages(int oldPage, int newPage, final boolean smooth)
+	private void rearrangePages(int oldPage, int newPage, final boolean smooth, final float velocity)
 	{
 		//do the clever loading / moving pages thingy...
 		if(getAdapterPageCount()>1)
@@ -335,7 +341,7 @@ public class PageView extends BounceSwipeView
 				{
 					if(smooth)
 					{
-						PageView.super.smoothScrollToPage(pageToScrollTo);
+						PageView.super.smoothScrollToPage(pageToScrollTo, velocity);
 					}
 					else
 					{
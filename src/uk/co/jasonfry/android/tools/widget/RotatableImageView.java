@@ -1,16 +1,45 @@
 package uk.co.jasonfry.android.tools.widget;
 
 
+import java.io.File;
+
+import uk.co.jasonfry.android.tools.util.BitmapLoader;
+import uk.co.jasonfry.android.tools.util.BitmapTransform;
+import uk.co.jasonfry.android.tools.util.BitmapUtil;
+import android.animation.ObjectAnimator;
+import android.animation.ValueAnimator;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
 public class RotatableImageView extends ImageView
 {
+	/**
+	 * Rotate the canvas in onDraw, so the image is redrawn every time the rotation changes
+	 */
+	public static final int ROTATE_CANVAS = 0;
+	
+	/**
+	 * Rotate the view with its rotation and pivot properties, so changing the rotation only changes how
+	 * the view's existing drawing is composited and nothing is redrawn. The whole view is rotated, 
+	 * including its background and bounds, and touch events arrive in the view's unrotated coordinates.
+	 */
+	public static final int ROTATE_VIEW = 1;
+	
 	private int mRotation = 0;
 	private float mXPivot = 0;
 	private float mYPivot = 0;
+	private int mRotationMode = ROTATE_CANVAS;
+	private ValueAnimator mRotationAnimator;
+	private float mAnimatedRotation = 0;
+	private File mImageFile;
+	private long mImageMediaId = -1;
+	private BitmapLoader.Task mImageTask;
+	private boolean mImageLoaded = false;
+	private ScaleType mRequestedScaleType;
 	
 	public RotatableImageView(Context context) 
 	{
@@ -36,9 +65,111 @@ public class RotatableImageView extends ImageView
 	 */
 	public void setRotation(int rotation, float xPivot, float yPivot)
 	{
+		cancelRotationAnimation();
 		mRotation = rotation;
 		mXPivot = xPivot;
 		mYPivot = yPivot;
+		if(mRotationMode==ROTATE_VIEW)
+		{
+			updateViewRotation();
+		}
+		else
+		{
+			invalidate();
+		}
+	}
+	
+	/**
+	 * Animate the rotation from where it is now, about the current pivot. With ROTATE_VIEW this 
+	 * animates the view's rotation property, so the view isn't redrawn for each frame, but the 
+	 * animator still runs on the UI thread in either mode. getRotation returns the final rotation as 
+	 * soon as this is called.
+	 * 
+	 * @param rotation The rotation to end at (in degrees)
+	 * @param duration The length of the animation (in milliseconds)
+	 */
+	public void rotateTo(int rotation, long duration)
+	{
+		cancelRotationAnimation();
+		float from = mRotationMode==ROTATE_VIEW ? super.getRotation() : mRotation;
+		mRotation = rotation;
+		if(mRotationMode==ROTATE_VIEW)
+		{
+			updateViewPivot();
+			mRotationAnimator = ObjectAnimator.ofFloat(this, "rotation", from, rotation); //the view's setRotation(float), not setRotation(int)
+			mRotationAnimator.setDuration(duration);
+			mRotationAnimator.start();
+			return;
+		}
+		
+		mRotationAnimator = ValueAnimator.ofFloat(from, rotation);
+		mRotationAnimator.setDuration(duration);
+		mRotationAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener()
+		{
+			public void onAnimationUpdate(ValueAnimator animator) 
+			{
+				mAnimatedRotation = ((Float) animator.getAnimatedValue()).floatValue();
+				invalidate();
+			}
+		});
+		mAnimatedRotation = from;
+		mRotationAnimator.start();
+	}
+	
+	/**
+	 * Show an image file, decoded in the background to the size of the view once it has one. The 
+	 * bitmap is decoded upright and the EXIF orientation is applied with setRotation, rather than by 
+	 * making a rotated copy of the bitmap, keeping the current pivot. As the bitmap is decoded to the 
+	 * size it is drawn at, the scale type is changed to CENTER while it is showing. CENTER_CROP is 
+	 * honoured by decoding the bitmap to cover the view, any other scale type by decoding it to fit 
+	 * inside. The scale type is put back when the view is resized, until the bitmap has been decoded 
+	 * again, and by cancelImageLoad.
+	 * 
+	 * @param file The image file
+	 */
+	public void setImageFile(File file)
+	{
+		cancelImageLoad();
+		mImageFile = file;
+		setImageDrawable(null);
+		loadImage();
+	}
+	
+	/**
+	 * Show an image from the MediaStore, in the same way as setImageFile
+	 * 
+	 * @param id The MediaStore id of the image
+	 */
+	public void setImageMediaId(long id)
+	{
+		cancelImageLoad();
+		mImageMediaId = id;
+		setImageDrawable(null);
+		loadImage();
+	}
+	
+	public File getImageFile()
+	{
+		return mImageFile;
+	}
+	
+	public long getImageMediaId()
+	{
+		return mImageMediaId;
+	}
+	
+	/**
+	 * Stop loading the image given to setImageFile or setImageMediaId and forget it, e.g. when the 
+	 * view is being recycled for another item. The image already showing is left as it is, but goes 
+	 * back to the scale type the view had before it was loaded.
+	 */
+	public void cancelImageLoad()
+	{
+		cancelImageTask();
+		restoreScaleType();
+		mImageFile = null;
+		mImageMediaId = -1;
+		mImageLoaded = false;
 	}
 	
 	public float getRotation()
@@ -56,12 +187,218 @@ public class RotatableImageView extends ImageView
 		return mYPivot;
 	}
 	
+	/**
+	 * Choose how the rotation is applied
+	 * 
+	 * @param rotationMode ROTATE_CANVAS, the default, or ROTATE_VIEW
+	 */
+	public void setRotationMode(int rotationMode)
+	{
+		if(rotationMode==mRotationMode)
+		{
+			return;
+		}
+		cancelRotationAnimation();
+		mRotationMode = rotationMode;
+		if(rotationMode==ROTATE_VIEW)
+		{
+			updateViewRotation();
+		}
+		else
+		{
+			super.setRotation(0);
+		}
+		invalidate();
+	}
+	
+	public int getRotationMode()
+	{
+		return mRotationMode;
+	}
+	
+	/**
+	 * @return The rotation onDraw applies to the canvas, which is 0 when the view itself is rotated
+	 */
+	protected float getCanvasRotation()
+	{
+		if(mRotationMode==ROTATE_VIEW)
+		{
+			return 0;
+		}
+		return mRotationAnimator!=null ? mAnimatedRotation : mRotation;
+	}
+	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh)
+	{
+		super.onSizeChanged(w, h, oldw, oldh);
+		if(mRotationMode==ROTATE_VIEW)
+		{
+			updateViewPivot();
+		}
+		if(hasImageSource())
+		{
+			loadImage();
+		}
+	}
+	
+	@Override
+	protected void onAttachedToWindow()
+	{
+		super.onAttachedToWindow();
+		if(hasImageSource() && !mImageLoaded && mImageTask==null)
+		{
+			loadImage();
+		}
+	}
+	
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		super.onDetachedFromWindow();
+		cancelImageTask();
+	}
+	
 	@Override
 	protected void onDraw(Canvas canvas) 
 	{
+		float rotation = getCanvasRotation();
+		if(rotation==0)
+		{
+			onDrawImage(canvas);
+			return;
+		}
 		canvas.save();
-		canvas.rotate(mRotation,(float)(this.getWidth()*mXPivot),(float)(this.getHeight()*mYPivot));
-		super.onDraw(canvas);
+		canvas.rotate(rotation,(float)(this.getWidth()*mXPivot),(float)(this.getHeight()*mYPivot));
+		onDrawImage(canvas);
 	    canvas.restore();
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Draw the image onto a canvas that has already been rotated. Subclasses that draw the image 
+	 * some other way override this rather than onDraw, so they keep the rotation.
+	 * 
+	 * @param canvas The rotated canvas
+	 */
+	protected void onDrawImage(Canvas canvas)
+	{
+		super.onDraw(canvas);
+	}
+	
+	private boolean hasImageSource()
+	{
+		return mImageFile!=null || mImageMediaId>=0;
+	}
+	
+	/**
+	 * Decode the image for the view's current size, or wait for onSizeChanged if it hasn't been laid out yet
+	 */
+	private void loadImage()
+	{
+		cancelImageTask();
+		restoreScaleType(); //until the new bitmap is ready, scale the old one to the view rather than showing it at its old size
+		final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+		final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+		if(!hasImageSource() || width<=0 || height<=0)
+		{
+			return;
+		}
+		
+		final File file = mImageFile;
+		final long mediaId = mImageMediaId;
+		final ContentResolver contentResolver = getContext().getContentResolver();
+		final boolean fill = (mRequestedScaleType!=null ? mRequestedScaleType : getScaleType())==ScaleType.CENTER_CROP;
+		final int[] rotation = new int[1]; //handed from the job to the callback
+		mImageTask = BitmapLoader.getDefault().submit(new BitmapLoader.Job()
+		{
+			public Bitmap run(BitmapLoader.Task task)
+			{
+				File source = file;
+				if(source==null)
+				{
+					String filepath = BitmapUtil.getMediaFilePath(contentResolver, mediaId);
+					if(filepath==null)
+					{
+						return null;
+					}
+					source = new File(filepath);
+				}
+				rotation[0] = BitmapUtil.getExifRotation(source.getAbsolutePath());
+				if(task.isCancelled())
+				{
+					return null;
+				}
+				
+				//the view does the rotating, so fit the upright image to the view turned back the other way
+				boolean sideways = rotation[0]==90 || rotation[0]==270;
+				BitmapTransform transform = new BitmapTransform();
+				if(fill)
+				{
+					transform.setFill(sideways ? height : width, sideways ? width : height);
+				}
+				else
+				{
+					transform.setFitInside(sideways ? height : width, sideways ? width : height);
+				}
+				return BitmapUtil.decodeFile(source, transform, null);
+			}
+		}, BitmapLoader.PRIORITY_VISIBLE, new BitmapLoader.Callback()
+		{
+			public void onBitmapLoaded(BitmapLoader.Task task, Bitmap bitmap)
+			{
+				mImageTask = null;
+				mImageLoaded = true;
+				if(bitmap==null)
+				{
+					return;
+				}
+				if(mRequestedScaleType==null)
+				{
+					mRequestedScaleType = getScaleType();
+				}
+				setScaleType(ScaleType.CENTER);
+				setImageBitmap(bitmap);
+				setRotation(rotation[0], mXPivot, mYPivot);
+			}
+		});
+	}
+	
+	private void restoreScaleType()
+	{
+		if(mRequestedScaleType!=null)
+		{
+			setScaleType(mRequestedScaleType);
+			mRequestedScaleType = null;
+		}
+	}
+	
+	private void cancelImageTask()
+	{
+		if(mImageTask!=null)
+		{
+			mImageTask.cancel();
+			mImageTask = null;
+		}
+	}
+	
+	private void updateViewRotation()
+	{
+		updateViewPivot();
+		super.setRotation(mRotation);
+	}
+	
+	private void updateViewPivot()
+	{
+		setPivotX(getWidth()*mXPivot);
+		setPivotY(getHeight()*mYPivot);
+	}
+	
+	private void cancelRotationAnimation()
+	{
+		if(mRotationAnimator!=null)
+		{
+			mRotationAnimator.cancel();
+			mRotationAnimator = null;
+		}
+	}
+}
@@ -0,0 +1,725 @@
+package uk.co.jasonfry.android.tools.widget;
+
+import java.io.File;
+import java.io.IOException;
+
+import uk.co.jasonfry.android.tools.util.BitmapCache;
+import uk.co.jasonfry.android.tools.util.BitmapLoader;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+
+/**
+ * A RotatableImageView for images far bigger than the screen, e.g. panoramas and scans. The whole image
+ * is never decoded. Instead a low resolution copy no bigger than the view is drawn underneath, and the
+ * tiles of the image that are on screen are decoded with a BitmapRegionDecoder at the sample size that
+ * suits the zoom, on a BitmapLoader's threads. Tiles are kept in a BitmapCache, so memory use depends on
+ * the size of the view rather than the size of the image.
+ *
+ * Pinch to zoom, drag to pan and double tap to zoom in or back out. Rotation and pivot work as they do
+ * for RotatableImageView, in either rotation mode. EXIF orientation isn't applied, use setRotation for that.
+ */
+public class TiledImageView extends RotatableImageView
+{
+	public static final int TILE_SIZE = 256;
+	public static final float DEFAULT_MAX_SCALE = 2f;
+
+	private static final int TILE_CACHE_SCREENS = 3;
+	private static final int MIN_TILE_CACHE_SIZE = 4*1024*1024;
+	private static final int TILE_INDEX_MASK = 0x1FFF;
+
+	private final SparseArray<BitmapLoader.Task> mPendingTiles = new SparseArray<BitmapLoader.Task>(); //by tile id
+	private final SparseArray<String> mTileKeys = new SparseArray<String>(); //the cache key of each tile id, made once rather than every frame
+	private final Matrix mImageMatrix = new Matrix();
+	private final Matrix mViewMatrix = new Matrix();
+	private final Matrix mInverseMatrix = new Matrix();
+	private final RectF mVisibleRect = new RectF();
+	private final RectF mImageRect = new RectF();
+	private final Rect mTileRect = new Rect();
+	private final float[] mPoint = new float[2];
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private BitmapLoader mBitmapLoader;
+	private BitmapCache mTileCache;
+	private int mTileCacheSize = 0;
+	private File mFile;
+	private BitmapLoader.Task mOpenTask;
+	private TileDecoder mDecoder;
+	private Bitmap mBaseBitmap;
+	private int mBaseSampleSize;
+	private int mImageWidth;
+	private int mImageHeight;
+	private int mGeneration = 0;
+	private int mVisibleSampleSize = 0; //the tiles drawn last frame, 0 if there weren't any
+	private int mFirstColumn;
+	private int mLastColumn;
+	private int mFirstRow;
+	private int mLastRow;
+	private float mScale = 1;
+	private float mMinScale = 1;
+	private float mMaxScale = DEFAULT_MAX_SCALE;
+	private float mTranslateX = 0;
+	private float mTranslateY = 0;
+	private ScaleGestureDetector mScaleDetector;
+	private GestureDetector mGestureDetector;
+
+	public TiledImageView(Context context)
+	{
+		super(context);
+		initTiledImageView(context);
+	}
+
+	public TiledImageView(Context context, AttributeSet attrs)
+	{
+		super(context, attrs);
+		initTiledImageView(context);
+	}
+
+	private void initTiledImageView(Context context)
+	{
+		mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+		mGestureDetector = new GestureDetector(context, new GestureListener());
+	}
+
+	/**
+	 * Show an image file. The file is opened on the loader's threads, and until it has been the view
+	 * draws whatever drawable it was given as a normal ImageView.
+	 *
+	 * @param file The image, which has to be a JPEG or PNG for BitmapRegionDecoder to open it
+	 */
+	@Override
+	public void setImageFile(File file)
+	{
+		cancelImageLoad();
+		release();
+		mFile = file;
+		if(file!=null)
+		{
+			open();
+		}
+		invalidate();
+	}
+
+	@Override
+	public File getImageFile()
+	{
+		return mFile;
+	}
+
+	/**
+	 * @param bitmapLoader The loader to open the image and decode tiles with, BitmapLoader.getDefault() if this isn't called
+	 */
+	public void setBitmapLoader(BitmapLoader bitmapLoader)
+	{
+		mBitmapLoader = bitmapLoader;
+	}
+
+	/**
+	 * @param tileCacheSize The number of bytes of tiles to keep, by default three times what it takes to fill the view
+	 */
+	public void setTileCacheSize(int tileCacheSize)
+	{
+		mTileCacheSize = tileCacheSize;
+		if(mTileCache!=null)
+		{
+			mTileCache.setMaxSize(tileCacheSize);
+		}
+	}
+
+	/**
+	 * @param maxScale The furthest the image can be zoomed in, as screen pixels per image pixel
+	 */
+	public void setMaxScale(float maxScale)
+	{
+		mMaxScale = maxScale;
+		if(mScale>getMaxScale())
+		{
+			zoomTo(getMaxScale(), getWidth()/2f, getHeight()/2f);
+		}
+	}
+
+	/**
+	 * @return The current zoom, as screen pixels per image pixel
+	 */
+	public float getScale()
+	{
+		return mScale;
+	}
+
+	public float getMinScale()
+	{
+		return mMinScale;
+	}
+
+	public float getMaxScale()
+	{
+		return Math.max(mMaxScale, mMinScale);
+	}
+
+	public int getImageWidth()
+	{
+		return mImageWidth;
+	}
+
+	public int getImageHeight()
+	{
+		return mImageHeight;
+	}
+
+	/**
+	 * Zoom the image, keeping the given point where it is on screen
+	 *
+	 * @param scale The new zoom, which is kept between getMinScale and getMaxScale
+	 * @param focusX The x of the point to zoom about, in view coordinates
+	 * @param focusY The y of the point to zoom about, in view coordinates
+	 */
+	public void zoomTo(float scale, float focusX, float focusY)
+	{
+		scale = Math.max(mMinScale, Math.min(getMaxScale(), scale));
+		mapToImageSpace(focusX, focusY);
+		mTranslateX = mPoint[0] - (mPoint[0] - mTranslateX) * scale / mScale;
+		mTranslateY = mPoint[1] - (mPoint[1] - mTranslateY) * scale / mScale;
+		mScale = scale;
+		clampTranslation();
+		invalidate();
+	}
+
+	/**
+	 * Fit the whole image in the view, centred
+	 */
+	public void resetZoom()
+	{
+		mScale = mMinScale;
+		clampTranslation();
+		invalidate();
+	}
+
+	@Override
+	public void setRotation(int rotation, float xPivot, float yPivot)
+	{
+		boolean fitted = mScale<=mMinScale;
+		super.setRotation(rotation, xPivot, yPivot);
+		updateMinScale();
+		if(fitted)
+		{
+			mScale = mMinScale;
+		}
+		clampTranslation();
+		invalidate();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh)
+	{
+		super.onSizeChanged(w, h, oldw, oldh);
+		if(mTileCache!=null && mTileCacheSize<=0)
+		{
+			mTileCache.setMaxSize(getDefaultTileCacheSize());
+		}
+		updateMinScale();
+		mScale = mMinScale;
+		clampTranslation();
+	}
+
+	@Override
+	protected void onAttachedToWindow()
+	{
+		super.onAttachedToWindow();
+		if(mFile!=null && mDecoder==null && mOpenTask==null)
+		{
+			open();
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		super.onDetachedFromWindow();
+		release();
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event)
+	{
+		if(mDecoder==null)
+		{
+			return super.onTouchEvent(event);
+		}
+		mScaleDetector.onTouchEvent(event);
+		mGestureDetector.onTouchEvent(event);
+		return true;
+	}
+
+	@Override
+	protected void onDrawImage(Canvas canvas)
+	{
+		if(mDecoder==null || mBaseBitmap==null)
+		{
+			super.onDrawImage(canvas);
+			return;
+		}
+
+		updateMatrices();
+		canvas.save();
+		canvas.concat(mImageMatrix);
+		mImageRect.set(0, 0, mImageWidth, mImageHeight);
+		canvas.drawBitmap(mBaseBitmap, null, mImageRect, mPaint);
+
+		int sampleSize = getSampleSize(mScale);
+		mVisibleSampleSize = 0;
+		if(sampleSize<mBaseSampleSize) //at this zoom the base bitmap is sharp enough on its own
+		{
+			mVisibleRect.set(0, 0, getWidth(), getHeight());
+			mInverseMatrix.mapRect(mVisibleRect);
+			int tileSize = TILE_SIZE * sampleSize;
+			mVisibleSampleSize = sampleSize;
+			mFirstColumn = Math.max(0, (int) Math.floor(mVisibleRect.left / tileSize));
+			mLastColumn = Math.min((mImageWidth - 1) / tileSize, (int) Math.floor(mVisibleRect.right / tileSize));
+			mFirstRow = Math.max(0, (int) Math.floor(mVisibleRect.top / tileSize));
+			mLastRow = Math.min((mImageHeight - 1) / tileSize, (int) Math.floor(mVisibleRect.bottom / tileSize));
+			for(int row=mFirstRow; row<=mLastRow; row++)
+			{
+				for(int column=mFirstColumn; column<=mLastColumn; column++)
+				{
+					int tileId = tileId(sampleSize, column, row);
+					String key = tileKey(tileId);
+					Bitmap tile = mTileCache.get(key);
+					if(tile!=null)
+					{
+						getTileRect(sampleSize, column, row, mImageWidth, mImageHeight, mTileRect);
+						canvas.drawBitmap(tile, null, mTileRect, mPaint);
+					}
+					else if(mPendingTiles.get(tileId)==null)
+					{
+						loadTile(tileId, key, sampleSize, column, row);
+					}
+				}
+			}
+		}
+		canvas.restore();
+		cancelHiddenTiles();
+	}
+
+	/**
+	 * Open the decoder and decode the base bitmap in the background
+	 */
+	private void open()
+	{
+		final File file = mFile;
+		final int generation = mGeneration;
+		final int baseSize = getBaseSize();
+		final BitmapRegionDecoder[] decoder = new BitmapRegionDecoder[1]; //handed from the job to the callback
+		mOpenTask = getBitmapLoader().submit(new BitmapLoader.Job()
+		{
+			public Bitmap run(BitmapLoader.Task task)
+			{
+				try
+				{
+					decoder[0] = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+				}
+				catch(IOException e)
+				{
+					return null;
+				}
+				int width = decoder[0].getWidth();
+				int height = decoder[0].getHeight();
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inSampleSize = calculateSampleSize(width, height, baseSize);
+				Bitmap base = decoder[0].decodeRegion(new Rect(0, 0, width, height), options);
+				if(task.isCancelled() || base==null)
+				{
+					decoder[0].recycle();
+					decoder[0] = null;
+					return null;
+				}
+				return base;
+			}
+		}, BitmapLoader.PRIORITY_VISIBLE, new BitmapLoader.Callback()
+		{
+			public void onBitmapLoaded(BitmapLoader.Task task, Bitmap bitmap)
+			{
+				mOpenTask = null;
+				if(bitmap==null || generation!=mGeneration)
+				{
+					if(decoder[0]!=null)
+					{
+						decoder[0].recycle();
+					}
+					return;
+				}
+				mDecoder = new TileDecoder(decoder[0]);
+				mBaseBitmap = bitmap;
+				mImageWidth = decoder[0].getWidth();
+				mImageHeight = decoder[0].getHeight();
+				mBaseSampleSize = calculateSampleSize(mImageWidth, mImageHeight, baseSize);
+				mTileCache = new BitmapCache(mTileCacheSize>0 ? mTileCacheSize : getDefaultTileCacheSize());
+				updateMinScale();
+				mScale = mMinScale;
+				clampTranslation();
+				invalidate();
+			}
+		});
+	}
+
+	/**
+	 * Cancel everything that is loading, forget the tiles and let go of the decoder
+	 */
+	private void release()
+	{
+		mGeneration++;
+		if(mOpenTask!=null)
+		{
+			mOpenTask.cancel();
+			mOpenTask = null;
+		}
+		for(int i=0; i<mPendingTiles.size(); i++)
+		{
+			mPendingTiles.valueAt(i).cancel();
+		}
+		mPendingTiles.clear();
+		mTileKeys.clear();
+		mVisibleSampleSize = 0;
+		if(mTileCache!=null)
+		{
+			mTileCache.evictAll();
+			mTileCache = null;
+		}
+		mBaseBitmap = null;
+		if(mDecoder!=null)
+		{
+			mDecoder.release(); //cancelled tiles may already be decoding, so this can leave the recycle to the last of them
+			mDecoder = null;
+		}
+	}
+
+	private void loadTile(final int tileId, final String key, final int sampleSize, final int column, final int row)
+	{
+		final TileDecoder decoder = mDecoder;
+		final int imageWidth = mImageWidth;
+		final int imageHeight = mImageHeight;
+		BitmapLoader.Task task = getBitmapLoader().submit(new BitmapLoader.Job()
+		{
+			public Bitmap run(BitmapLoader.Task task)
+			{
+				Rect region = new Rect();
+				getTileRect(sampleSize, column, row, imageWidth, imageHeight, region);
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inSampleSize = sampleSize;
+				return decoder.decodeRegion(region, options);
+			}
+		}, BitmapLoader.PRIORITY_VISIBLE, new BitmapLoader.Callback()
+		{
+			public void onBitmapLoaded(BitmapLoader.Task task, Bitmap bitmap)
+			{
+				mPendingTiles.remove(tileId);
+				if(bitmap!=null && mTileCache!=null)
+				{
+					mTileCache.put(key, bitmap);
+					invalidate();
+				}
+			}
+		});
+		mPendingTiles.put(tileId, task);
+	}
+
+	/**
+	 * Cancel the tiles that were asked for but have gone off screen, or are for another zoom, before they were loaded
+	 */
+	private void cancelHiddenTiles()
+	{
+		for(int i=mPendingTiles.size()-1; i>=0; i--)
+		{
+			if(!isTileVisible(mPendingTiles.keyAt(i)))
+			{
+				mPendingTiles.valueAt(i).cancel();
+				mPendingTiles.removeAt(i);
+			}
+		}
+	}
+
+	private boolean isTileVisible(int tileId)
+	{
+		int column = (tileId >> 13) & TILE_INDEX_MASK;
+		int row = tileId & TILE_INDEX_MASK;
+		return (1 << (tileId >>> 26))==mVisibleSampleSize && column>=mFirstColumn && column<=mLastColumn && row>=mFirstRow && row<=mLastRow;
+	}
+
+	/**
+	 * mImageMatrix takes image coordinates to the rotated canvas, mViewMatrix adds the rotation to take
+	 * them to the view, and mInverseMatrix takes view coordinates back to the image
+	 */
+	private void updateMatrices()
+	{
+		mImageMatrix.setTranslate(0, 0);
+		mImageMatrix.postScale(mScale, mScale);
+		mImageMatrix.postTranslate(mTranslateX, mTranslateY);
+		mViewMatrix.set(mImageMatrix);
+		mViewMatrix.postRotate(getCanvasRotation(), getWidth()*getXPivot(), getHeight()*getYPivot());
+		mViewMatrix.invert(mInverseMatrix);
+	}
+
+	/**
+	 * Undo the rotation of a point in view coordinates, leaving it in mPoint
+	 */
+	private void mapToImageSpace(float x, float y)
+	{
+		mViewMatrix.setRotate(-getCanvasRotation(), getWidth()*getXPivot(), getHeight()*getYPivot());
+		mPoint[0] = x;
+		mPoint[1] = y;
+		mViewMatrix.mapPoints(mPoint);
+	}
+
+	private void panBy(float distanceX, float distanceY)
+	{
+		mViewMatrix.setRotate(-getCanvasRotation());
+		mPoint[0] = distanceX;
+		mPoint[1] = distanceY;
+		mViewMatrix.mapVectors(mPoint);
+		mTranslateX -= mPoint[0];
+		mTranslateY -= mPoint[1];
+		clampTranslation();
+		invalidate();
+	}
+
+	private void updateMinScale()
+	{
+		if(mImageWidth<=0 || mImageHeight<=0 || getWidth()<=0 || getHeight()<=0)
+		{
+			return;
+		}
+		mMinScale = Math.min(getFittedWidth() / mImageWidth, getFittedHeight() / mImageHeight);
+		mScale = Math.max(mMinScale, Math.min(getMaxScale(), mScale));
+	}
+
+	/**
+	 * Keep the image filling the view where it is big enough to, and centred where it isn't
+	 */
+	private void clampTranslation()
+	{
+		float fittedWidth = getFittedWidth();
+		float fittedHeight = getFittedHeight();
+		float left = (getWidth() - fittedWidth) / 2;
+		float top = (getHeight() - fittedHeight) / 2;
+		mTranslateX = clamp(mTranslateX, left, fittedWidth, mImageWidth * mScale);
+		mTranslateY = clamp(mTranslateY, top, fittedHeight, mImageHeight * mScale);
+	}
+
+	private static float clamp(float translate, float start, float available, float size)
+	{
+		if(size<=available)
+		{
+			return start + (available - size) / 2;
+		}
+		return Math.max(start + available - size, Math.min(start, translate));
+	}
+
+	/**
+	 * @return The width the image has to fit in before it is rotated, which is the view's height for a quarter turn
+	 */
+	private float getFittedWidth()
+	{
+		return isQuarterTurn() ? getHeight() : getWidth();
+	}
+
+	private float getFittedHeight()
+	{
+		return isQuarterTurn() ? getWidth() : getHeight();
+	}
+
+	private boolean isQuarterTurn()
+	{
+		return getRotationMode()==ROTATE_CANVAS && Math.abs((int) getRotation()) % 180 == 90;
+	}
+
+	private static void getTileRect(int sampleSize, int column, int row, int imageWidth, int imageHeight, Rect rect)
+	{
+		int tileSize = TILE_SIZE * sampleSize;
+		rect.set(column * tileSize, row * tileSize, Math.min(imageWidth, (column + 1) * tileSize), Math.min(imageHeight, (row + 1) * tileSize));
+	}
+
+	/**
+	 * @return The power of two sample size nearest to the zoom, so tiles are drawn at between 0.7 and
+	 * 1.4 screen pixels per decoded pixel once the image is zoomed out past 1.4
+	 */
+	private static int getSampleSize(float scale)
+	{
+		int sampleSize = 1;
+		while(sampleSize * 2 * scale <= 1.414f)
+		{
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	private static int calculateSampleSize(int width, int height, int size)
+	{
+		int sampleSize = 1;
+		while(Math.max(width, height) / (sampleSize * 2) >= size)
+		{
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * @return The tile's sample size, column and row packed into an int. Columns and rows get 13 bits
+	 * each, which at TILE_SIZE is more than the 65535 pixels a JPEG can be across.
+	 */
+	private static int tileId(int sampleSize, int column, int row)
+	{
+		return Integer.numberOfTrailingZeros(sampleSize) << 26 | column << 13 | row;
+	}
+
+	private String tileKey(int tileId)
+	{
+		String key = mTileKeys.get(tileId);
+		if(key==null)
+		{
+			key = Integer.toString(tileId);
+			mTileKeys.put(tileId, key);
+		}
+		return key;
+	}
+
+	/**
+	 * @return The size of the base bitmap, which is the view's longest side or the screen's if it hasn't been laid out yet
+	 */
+	private int getBaseSize()
+	{
+		int size = Math.max(getWidth(), getHeight());
+		if(size<=0)
+		{
+			size = Math.max(getResources().getDisplayMetrics().widthPixels, getResources().getDisplayMetrics().heightPixels);
+		}
+		return size;
+	}
+
+	private int getDefaultTileCacheSize()
+	{
+		return Math.max(MIN_TILE_CACHE_SIZE, getWidth() * getHeight() * 4 * TILE_CACHE_SCREENS);
+	}
+
+	private BitmapLoader getBitmapLoader()
+	{
+		if(mBitmapLoader==null)
+		{
+			mBitmapLoader = BitmapLoader.getDefault();
+		}
+		return mBitmapLoader;
+	}
+
+	/**
+	 * Counts the tiles a BitmapRegionDecoder is decoding, so it is recycled once the last of them has
+	 * finished rather than under them. Before API 19 recycling a decoder in the middle of decodeRegion isn't safe.
+	 */
+	private static class TileDecoder
+	{
+		private final BitmapRegionDecoder mDecoder;
+		private int mDecoding = 0;
+		private boolean mReleased = false;
+
+		public TileDecoder(BitmapRegionDecoder decoder)
+		{
+			mDecoder = decoder;
+		}
+
+		/**
+		 * @return The region, or null if the decoder has been released
+		 */
+		public Bitmap decodeRegion(Rect region, BitmapFactory.Options options)
+		{
+			synchronized(this)
+			{
+				if(mReleased)
+				{
+					return null;
+				}
+				mDecoding++;
+			}
+			try
+			{
+				return mDecoder.decodeRegion(region, options);
+			}
+			finally
+			{
+				synchronized(this)
+				{
+					mDecoding--;
+					if(mReleased && mDecoding==0)
+					{
+						mDecoder.recycle();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Recycle the decoder now if no tile is decoding, otherwise when the last one finishes
+		 */
+		public synchronized void release()
+		{
+			if(!mReleased)
+			{
+				mReleased = true;
+				if(mDecoding==0)
+				{
+					mDecoder.recycle();
+				}
+			}
+		}
+	}
+
+	private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener
+	{
+		@Override
+		public boolean onScale(ScaleGestureDetector detector)
+		{
+			zoomTo(mScale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+			return true;
+		}
+	}
+
+	private class GestureListener extends GestureDetector.SimpleOnGestureListener
+	{
+		@Override
+		public boolean onDown(MotionEvent e)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY)
+		{
+			if(mScaleDetector.isInProgress())
+			{
+				return false;
+			}
+			panBy(distanceX, distanceY);
+			return true;
+		}
+
+		@Override
+		public boolean onDoubleTap(MotionEvent e)
+		{
+			if(mScale < getMaxScale() * 0.99f)
+			{
+				zoomTo(getMaxScale(), e.getX(), e.getY());
+			}
+			else
+			{
+				resetZoom();
+			}
+			return true;
+		}
+	}
+}